@@ -0,0 +1,123 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Who a server lets in and how fast they may go. At most maxConnections clients play at once,
+ * the next maxWaiting wait in line for a place, in the order they connected, and the others are turned away.
+ * Each client admitted gets a TokenBucket of its own if requests are rate limited, see bucket().
+ */
+public class AdmissionControl {
+    
+    /** Most clients admitted at once **/
+    private final int maxConnections;
+    /** Most clients waiting for a place **/
+    private final int maxWaiting;
+    /** Tokens per second and most tokens of each client's bucket, rate 0 if requests are not limited **/
+    private final double rate;
+    private final double burst;
+    /** Clients admitted and not yet released **/
+    private int admitted = 0;
+    /** Clients waiting for a place, in the order they connected, completed once admitted **/
+    private final Map<Session, CompletableFuture<Void>> waiting = new LinkedHashMap<>();
+    private static final ServerMetrics METRICS = ServerMetrics.INSTANCE;
+    
+    // Abstraction function:
+    //      Represent the admitted clients, the sessions with admitted set, and the line of waiting
+    //      sessions, the keys of waiting first to last
+    
+    // Rep invariant:
+    //       0 <= admitted <= maxConnections, waiting.size() <= maxWaiting
+    //       waiting.size() > 0 implies admitted == maxConnections
+    
+    // Rep exposure
+    //      All fields are private, waiting is never returned
+    
+    // Thread safety
+    //      admitted, waiting and the admitted field of every session are guarded by this,
+    //      a waiting client's future is completed outside the lock
+    
+    /**
+     * Make an AdmissionControl.
+     * @param maxConnections most clients admitted at once, > 0
+     * @param maxWaiting most clients waiting for a place, >= 0
+     * @param rate tokens per second of each client, 0 if requests are not limited
+     * @param burst most tokens of each client, > 0 if rate > 0
+     */
+    public AdmissionControl(int maxConnections, int maxWaiting, double rate, double burst) {
+        this.maxConnections = maxConnections;
+        this.maxWaiting = maxWaiting;
+        this.rate = rate;
+        this.burst = burst;
+    }
+    
+    /**
+     * Let a client in, now if there is a place, else once one frees up.
+     * @param session of the new client
+     * @return completed once the client is admitted, already if it is now, or null if it is turned away
+     */
+    public synchronized CompletableFuture<Void> admit(Session session) {
+        if (admitted < maxConnections) {
+            admitted++;
+            session.admitted = true;
+            return CompletableFuture.completedFuture(null);
+        }
+        if (waiting.size() >= maxWaiting) return null;
+        CompletableFuture<Void> place = new CompletableFuture<>();
+        waiting.put(session, place);
+        METRICS.waiting(1);
+        return place;
+    }
+    
+    /**
+     * Take a client that disconnected out of the line of waiting clients.
+     * @param session of the client
+     * @return true if the client holds no place, it was waiting or turned away,
+     *         false if it was admitted and must release() its place
+     */
+    public synchronized boolean withdraw(Session session) {
+        if (waiting.remove(session) != null) {
+            METRICS.waiting(-1);
+            return true;
+        }
+        return ! session.admitted;
+    }
+    
+    /**
+     * Give back the place of an admitted client that disconnected and left its game,
+     * to the first client waiting if any. Does nothing if it was already given back.
+     * @param session of the client
+     */
+    public void release(Session session) {
+        CompletableFuture<Void> next = null;
+        synchronized (this) {
+            if ( ! session.admitted) return;
+            session.admitted = false;
+            admitted--;
+            if ( ! waiting.isEmpty()) {
+                Map.Entry<Session, CompletableFuture<Void>> first = waiting.entrySet().iterator().next();
+                waiting.remove(first.getKey());
+                METRICS.waiting(-1);
+                admitted++;
+                first.getKey().admitted = true;
+                next = first.getValue();
+            }
+        }
+        if (next != null) next.complete(null);
+    }
+    
+    /** @return number of clients waiting for a place **/
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+    
+    /** @return a new bucket limiting the requests of one client, null if requests are not limited **/
+    public TokenBucket bucket() {
+        return rate > 0 ? new TokenBucket(rate, burst) : null;
+    }
+    
+}
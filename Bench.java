@@ -0,0 +1,176 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A minimal microbenchmark harness: runs an operation for a warmup period, then measures
+ * its throughput and the bytes it allocates per call, on one thread or on several contending threads.
+ * Results can be written as CSV or JSON to compare runs.
+ */
+public class Bench {
+    
+    /** Default warmup and measurement times **/
+    static final long WARMUP_MILLIS = 2000;
+    static final long MEASURE_MILLIS = 3000;
+    /** Most calls between two clock reads **/
+    private static final int MAX_BATCH = 1024;
+    /** Batches shorter than this grow **/
+    private static final long BATCH_NANOS = 1_000_000;
+    
+    /** Sink for the results of measured calls, so they cannot be optimized away **/
+    private static volatile int sink;
+    
+    /**
+     * Measure op and print a result line.
+     * @param name of the benchmark
+     * @param op operation to measure, its result is consumed
+     * @return calls per second
+     */
+    public static double run(String name, IntSupplier op) {
+        return run(name, 1, () -> op).opsPerSecond;
+    }
+    
+    /**
+     * Measure threads threads calling their own op at the same time, and print a result line.
+     * Every thread warms up, then all of them are measured over the same period.
+     * 
+     * @param name of the benchmark
+     * @param threads number of threads, > 0
+     * @param ops makes the operation of each thread, called on that thread
+     * @return the measured result
+     */
+    public static Result run(String name, int threads, Supplier<IntSupplier> ops) {
+        CyclicBarrier measuring = new CyclicBarrier(threads);
+        long[] calls = new long[threads];
+        long[] bytes = new long[threads];
+        long[] nanos = new long[threads];
+        Thread[] runners = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            runners[t] = new Thread(() -> {
+                IntSupplier op = ops.get();
+                loop(op, WARMUP_MILLIS);
+                try {
+                    measuring.await();
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    throw new IllegalStateException(e);
+                }
+                long bytesBefore = allocatedBytes();
+                long start = System.nanoTime();
+                calls[index] = loop(op, MEASURE_MILLIS);
+                nanos[index] = System.nanoTime() - start;
+                bytes[index] = allocatedBytes() - bytesBefore;
+            }, name + "-" + t);
+            runners[t].start();
+        }
+        double perSecond = 0;
+        long totalCalls = 0;
+        long totalBytes = 0;
+        for (int t = 0; t < threads; t++) {
+            try {
+                runners[t].join();
+            } catch (InterruptedException ie) {
+                throw new IllegalStateException(ie);
+            }
+            perSecond += calls[t] * 1e9 / nanos[t];
+            totalCalls += calls[t];
+            totalBytes += bytes[t];
+        }
+        Result result = new Result(name, threads, perSecond, (double) totalBytes / totalCalls);
+        System.out.println(result);
+        return result;
+    }
+    
+    /**
+     * Write results for another program to compare: as JSON if file ends with ".json", else as CSV.
+     * @param results to write
+     * @param file to write
+     * @throws IOException if file can not be written
+     */
+    public static void write(List<Result> results, File file) throws IOException {
+        boolean json = file.getName().endsWith(".json");
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            if (json) out.println("[");
+            else out.println("benchmark,threads,ops_per_second,bytes_per_op");
+            for (int k = 0; k < results.size(); k++) {
+                Result r = results.get(k);
+                if (json) {
+                    out.println(String.format(Locale.ROOT,
+                            "  {\"benchmark\": \"%s\", \"threads\": %d, \"opsPerSecond\": %.1f, \"bytesPerOp\": %.2f}%s",
+                            r.name, r.threads, r.opsPerSecond, r.bytesPerOp, k + 1 < results.size() ? "," : ""));
+                } else {
+                    out.println(String.format(Locale.ROOT, "\"%s\",%d,%.1f,%.2f", r.name, r.threads, r.opsPerSecond, r.bytesPerOp));
+                }
+            }
+            if (json) out.println("]");
+        }
+    }
+    
+    /**
+     * Call op in batches for about millis, return the number of calls.
+     * Batches start at one call and double while they take less than BATCH_NANOS,
+     * so slow operations do not overrun the period.
+     */
+    private static long loop(IntSupplier op, long millis) {
+        long now = System.nanoTime();
+        long deadline = now + millis * 1_000_000;
+        long calls = 0;
+        int result = 0;
+        int batch = 1;
+        do {
+            long batchStart = now;
+            for (int i = 0; i < batch; i++) {
+                result += op.getAsInt();
+            }
+            calls += batch;
+            now = System.nanoTime();
+            if (batch < MAX_BATCH && now - batchStart < BATCH_NANOS) batch *= 2;
+        } while (now < deadline);
+        sink = result;
+        return calls;
+    }
+    
+    /** Result of one benchmark run **/
+    public static final class Result {
+        final String name;
+        final int threads;
+        /** Calls per second, of all threads together **/
+        final double opsPerSecond;
+        /** Bytes allocated per call **/
+        final double bytesPerOp;
+        
+        Result(String name, int threads, double opsPerSecond, double bytesPerOp) {
+            this.name = name;
+            this.threads = threads;
+            this.opsPerSecond = opsPerSecond;
+            this.bytesPerOp = bytesPerOp;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%-40s %3d thr %14.0f ops/s %10.1f B/op", name, threads, opsPerSecond, bytesPerOp);
+        }
+    }
+    
+    /** Bytes allocated so far by the current thread, 0 if the JVM cannot tell **/
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+    
+}
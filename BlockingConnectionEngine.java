@@ -0,0 +1,188 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Connection engine reading each connection on its own thread with blocking I/O. Output is written by a thread
+ * borrowed from a shared executor when some is queued, and given back once it is all written, so a connection
+ * only holds a second thread while its client is slow to read.
+ */
+public class BlockingConnectionEngine implements ConnectionEngine {
+    
+    /** Runs each connection's reading loop **/
+    private final Executor threads;
+    /** Writes the queued output of connections **/
+    private final Executor writers;
+    
+    // Abstraction function: 
+    //      Represent a reading thread per connection and writing threads shared by all connections,
+    //      threads and writers decide what kind of thread
+    
+    // Rep invariant:
+    //       threads != null, writers != null
+    
+    // Rep exposure
+    //      All fields are private and final
+    
+    /**
+     * Make a BlockingConnectionEngine.
+     * @param threads executor giving each connection its own thread
+     * @param writers executor writing the output of connections, one task at a time per connection,
+     *                which blocks while its client does not read
+     */
+    public BlockingConnectionEngine(Executor threads, Executor writers) {
+        this.threads = threads;
+        this.writers = writers;
+    }
+    
+    @Override
+    public void serve(ServerSocketChannel listener, MinesweeperServer server) throws IOException {
+        while (true) {
+            // block until a client connects
+            Socket socket = listener.socket().accept();
+            // replies are written whole, waiting to coalesce their last segment only adds latency
+            socket.setTcpNoDelay(true);
+            BlockingSession session = new BlockingSession(socket, writers);
+            threads.execute(() -> {
+                try {
+                    handleConnection(session, server);
+                } catch (IOException ioe) {
+                    ioe.printStackTrace(); // but don't terminate serve()
+                } finally {
+                    // the socket is closed once the output is written
+                    session.close();
+                }
+            });
+        }
+    }
+    
+    /**
+     * Handle a single client connection. Returns when client disconnects.
+     * 
+     * @param session of the client connection
+     * @param server handling the client input
+     * @throws IOException if the connection encounters an error or terminates unexpectedly
+     */
+    private void handleConnection(BlockingSession session, MinesweeperServer server) throws IOException {
+        server.connected(session);
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(session.socket.getInputStream()));
+            while (!session.closed) {
+                String line = in.readLine();
+                if (line == null) break;
+                server.received(session, line).join();
+            }
+        } catch (SocketException se) {
+            // expected if the session was closed while reading
+            if (!session.closed) throw se;
+        } finally {
+            server.disconnected(session);
+        }
+    }
+    
+    /**
+     * Session whose output is written by a writer task started when output is queued and none runs,
+     * so that a client not reading only blocks its own writer, never the game or the other clients.
+     */
+    private static class BlockingSession extends Session {
+        private final Socket socket;
+        private final Executor writers;
+        private volatile boolean closed = false;
+        /** True while a writer task runs for this session **/
+        private boolean writing = false;
+        /** Stream of the socket, made by the first writer task **/
+        private OutputStream out;
+        
+        // Thread safety
+        //      The socket is read by the connection's thread and written by one writer task at a time,
+        //      writing is guarded by this, out is confined to the writer task running
+        
+        BlockingSession(Socket socket, Executor writers) {
+            this.socket = socket;
+            this.writers = writers;
+        }
+        
+        /**
+         * Write the queued output, every message queued meanwhile in one flush, until none is left.
+         * Closes the socket if the session is closed once its output is written, or the connection broke.
+         */
+        private void write() {
+            try {
+                if (out == null) out = new BufferedOutputStream(socket.getOutputStream());
+                while (true) {
+                    List<byte[]> batch = output.drain();
+                    if (batch.isEmpty()) {
+                        synchronized (this) {
+                            if ( ! output.isEmpty()) continue;
+                            writing = false;
+                            if (closed) closeSocket();
+                            return;
+                        }
+                    }
+                    long bytes = 0;
+                    for (byte[] message : batch) {
+                        out.write(message);
+                        bytes += message.length;
+                    }
+                    out.flush();
+                    output.written(bytes);
+                }
+            } catch (IOException ioe) {
+                // the connection broke, the reading loop finds it too
+                synchronized (this) {
+                    writing = false;
+                    closed = true;
+                }
+                output.close();
+                closeSocket();
+            }
+        }
+        
+        @Override
+        protected void flushSoon() {
+            // called holding this lock
+            if (writing || closed) return;
+            writing = true;
+            writers.execute(this::write);
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+        
+        @Override
+        public synchronized void close() {
+            closed = true;
+            output.close();
+            // else the writer task closes the socket once done
+            if ( ! writing) closeSocket();
+        }
+        
+        @Override
+        public void abort() {
+            close();
+            closeSocket();
+        }
+        
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+    }
+    
+}
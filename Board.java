@@ -2,63 +2,254 @@
  * Redistribution of original or derived work requires permission of course staff.
  */
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /**
  * An mutable datatype represent a n*m Minesweeper board
- * Initialize with 10% booms randomly spread on the board, will not change till this game exit.
+ * Initialize with 25% booms randomly spread on the board, see BOOM_PROBABILITY, will not change till this game exit.
+ * Every square keeps its number of adjacent booms, computed when the board is made, so digs just read it.
+ * 
+ * The board is locked in horizontal stripes of rows, by default a single stripe covering the whole board.
+ * With several stripes, players digging and flagging in different parts of the board proceed in parallel:
+ * flag and deflag lock the stripe of their square only, and a dig locks the stripes its flood fill
+ * spreads into (plus one row around, whose counts and squares it may change or reveal).
+ * 
+ * Consistency: every dig, flag and deflag is atomic, and lookBoard shows the latest published snapshot,
+ * so a look always shows the board between two moves, never half of a flood fill.
+ * 
+ * Looks take no lock: once the board was first looked at, every move publishes a new immutable
+ * snapshot of the board before releasing its stripes. A snapshot shares the rows the move did not change
+ * with the previous one, and renders each row and the whole board once, for every look that reads it.
+ * 
+ * Cells live in a CellStore, either one flat array or lazily created chunks for boards
+ * too large to allocate, see Board.chunked(..).
+ * 
+ * The board counts its safe squares still hidden, booms left, flags and dug squares as moves change them,
+ * so its status and the end of the game are known without looking at the squares. Chunked boards
+ * are never scanned, so their safe squares and booms are unknown and they are never won.
  */
 public class Board {
     
-    /** The Board array**/
-    private final Square[][] board;
+    /** Low bits of a cell: number of adjacent booms, 0..8 **/
+    static final int COUNT_MASK = 0x0F;
+    /** Cell state bits **/
+    static final int STATE_MASK = 0x30;
+    static final int UNTOUCHED = 0x00;
+    static final int FLAGGED = 0x10;
+    static final int DUG = 0x20;
+    /** Set if the cell contains a boom **/
+    static final int BOOM = 0x40;
+    /** Chance of a boom on each square of a random board **/
+    static final double BOOM_PROBABILITY = 0.25;
+    
+    /** Largest board lookBoard renders whole, bigger boards are only shown through viewports **/
+    static final long MAX_LOOK_CELLS = 1L << 24;
+    /** Reply of lookBoard on bigger boards **/
+    static final String TOO_LARGE_TO_LOOK = "Board too large to show whole, look at a part of it";
+    
+    /** Row and col offsets of the 8 neighbours of a cell **/
+    private static final int[] DX = {-1, -1, -1, 0, 0, 1, 1, 1};
+    private static final int[] DY = {-1, 0, 1, -1, 1, -1, 0, 1};
+    private static final int NEIGHBOURS = DX.length;
+    /** Result of a dig attempt that has to be rolled back and retried with more stripes locked **/
+    private static final int RETRY = Integer.MIN_VALUE;
+    /** Where lock waits and hold times and digs are recorded **/
+    private static final ServerMetrics METRICS = ServerMetrics.INSTANCE;
+    /** Past this many entries the per thread fill buffers are dropped after a dig **/
+    private static final int MAX_KEPT_BUFFER = 1 << 16;
+    
+    /** The Board cells, one packed cell per square **/
+    private final CellStore cells;
     /** Number of row **/
     private final int n;
     /** Number of col **/
     private final int m;
+    /** Number of rows per lock stripe **/
+    private final int stripeRows;
+    /** Lock of each stripe, always acquired in increasing order **/
+    private final ReentrantLock[] stripes;
+    /** Flood fill state of the dig running on each thread **/
+    private final ThreadLocal<Fill> fills = ThreadLocal.withInitial(Fill::new);
+    /** Told about every cell change, replaced whole when a listener is added or removed **/
+    private volatile BoardListener[] listeners = new BoardListener[0];
+    /** Journal of the moves applied to this board, null if not journaled **/
+    private volatile MoveJournal journal;
+    /** Number of players on this board **/
+    private final AtomicInteger players = new AtomicInteger();
+    /** True if the squares were counted when the board was made, else hiddenSafe and booms are unknown **/
+    private final boolean counted;
+    /** Safe squares not dug, booms, flagged squares and dug squares **/
+    private final AtomicLong hiddenSafe = new AtomicLong();
+    private final AtomicLong booms = new AtomicLong();
+    private final AtomicLong flags = new AtomicLong();
+    private final AtomicLong dug = new AtomicLong();
+    /** Run once the last safe square is dug, null if none **/
+    private volatile Runnable onWon;
+    /** True if a dig run by exclusive(..) won the board, onWon then runs once exclusive(..) released it **/
+    private boolean wonInExclusive = false;
+    /** True if the board is small enough to look at whole **/
+    private final boolean lookable;
+    /** Latest snapshot of the board, null until the board is first looked at **/
+    private final AtomicReference<Snapshot> published = new AtomicReference<>();
     
     // Abstraction function: 
-    //      Represent a minesweeper game board
+    //      Represent a minesweeper game board, cell (i, j) is cells.get(i, j),
+    //      its BOOM bit tells whether it contains a boom, its STATE bits whether it is
+    //      untouched, flagged or dug, and its COUNT bits how many adjacent booms it shows once dug.
     
     // Rep invariant:
-    //       board != null, board.length != 0.
+    //       cells != null, cells has n rows and m cols, n > 0, m > 0.
+    //       the STATE bits of every cell are one of UNTOUCHED, FLAGGED, DUG
+    //       the COUNT bits of every cell are the number of booms in its neighbours, in 0..8
+    //       lookable iff n * m <= MAX_LOOK_CELLS, published.get() == null if not lookable
+    //       flags and dug are the numbers of FLAGGED and DUG cells,
+    //       if counted, hiddenSafe and booms are the numbers of cells not DUG without BOOM and with BOOM
+    //       once a move released its stripes, published.get() shows the board as left by the move
+    //       published.get().version is the number of moves that changed cells since the first snapshot
+    //       stripes.length == ceil(n / stripeRows)
     
     // Rep exposure
-    //      All fields are private and final
+    //      All fields are private, all final but journal, onWon and listeners,
+    //      volatile and set by their setters, and wonInExclusive
     
     // Thread safety
-    //      This is a thread safe datatype, Every operation chang the rep is a synchronized method
+    //      This is a thread safe datatype, cell (i, j) is guarded by the stripe of row i.
+    //      The counters are atomic and changed before a move releases its stripes, a status read while
+    //      other moves run may count some of them and not others, but never part of a move's change to one counter.
+    //      Snapshots are immutable but for their renderings, computed on demand by any reader:
+    //      racing readers compute the same Strings, and Strings are safely published by their final fields.
+    //      A move publishes its rows holding their stripes, so the snapshots of the moves of a row
+    //      are published in the order of the moves; a move spanning stripes publishes all its rows at once.
+    //      Once there is a snapshot, a move publishes and tells its listeners under the monitor of published,
+    //      so listeners hear of the moves in the order of the versions of their snapshots.
+    //      Moves are appended to the journal while their stripes are held, so the journal order is an
+    //      order the moves could have run in one after the other.
+    //      wonInExclusive is guarded by every stripe, only exclusive(..) holds them all.
+    //      Listeners are added and removed under this, each move reads them once and tells those only.
+    //      Locks are taken in increasing stripe order, a dig needing a lower stripe than it holds only
+    //      tries to take it, and on failure undoes its changes and starts over with all stripes in order.
     
     public Board(int n, int m) {
-        this.n = n;
-        this.m = m;
-        board = new Square[n][m];
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < m; j++) {
-                Square square = new Square(Math.random() > 0.25 ? false : true, i, j);
-                board[i][j] = square;
-            }
-        }
+        this(n, m, 0);
+    }
+    
+    /**
+     * Make a random n*m board.
+     * @param stripeRows number of rows per lock stripe, 0 for a single lock over the whole board
+     */
+    public Board(int n, int m, int stripeRows) {
+        this(FlatCellStore.random(n, m, ThreadLocalRandom.current().nextLong()), stripeRows);
     }
     
     public Board(File file) throws IOException {
-        BufferedReader in = new BufferedReader(new FileReader(file));
-        String line = in.readLine();
-        this.m = Integer.parseInt(line.split(" ")[0]);
-        this.n = Integer.parseInt(line.split(" ")[1]);
-        board = new Square[n][m];
-        for (int i = 0; i < n; i++) {
-            String[] tokens = in.readLine().split(" ");
-            for (int j = 0; j < m; j++) {
-                Square square = new Square(Integer.parseInt(tokens[j]) == 0 ? false : true, i, j);
-                board[i][j] = square;
-            }
+        this(file, 0);
+    }
+    
+    /**
+     * Load a board from a file, in the text format or the binary format of BoardFile.
+     * A binary snapshot resumes the game where it was taken.
+     * @param stripeRows number of rows per lock stripe, 0 for a single lock over the whole board
+     */
+    public Board(File file, int stripeRows) throws IOException {
+        this(BoardFile.read(file), stripeRows);
+    }
+    
+    /**
+     * Make a board over a store of cells, whose COUNT bits hold their numbers of adjacent booms.
+     * @param stripeRows number of rows per lock stripe, 0 for a single lock over the whole board
+     */
+    Board(CellStore cells, int stripeRows) {
+        this.cells = cells;
+        this.n = cells.rows();
+        this.m = cells.cols();
+        lookable = (long) n * m <= MAX_LOOK_CELLS;
+        counted = cells instanceof FlatCellStore;
+        if (counted) count(((FlatCellStore) cells).cells());
+        this.stripeRows = stripeRows > 0 ? Math.min(stripeRows, n) : n;
+        stripes = newStripes(n, this.stripeRows);
+    }
+    
+    /**
+     * Make a random n*m board, generated in parallel, the same for the same seed.
+     * 
+     * @param n number of rows, > 0
+     * @param m number of cols, > 0
+     * @param seed of the boom positions
+     * @param stripeRows number of rows per lock stripe, 0 for a single lock over the whole board
+     * @return the board
+     */
+    public static Board random(int n, int m, long seed, int stripeRows) {
+        return new Board(FlatCellStore.random(n, m, seed), stripeRows);
+    }
+    
+    /**
+     * Make a random n*m board whose cells are only stored once touched, in chunks.
+     * Booms come from a hash of seed and the square's position, so the same seed gives the same board
+     * and untouched parts of the board cost no memory. Suits boards far larger than the heap.
+     * 
+     * @param n number of rows, > 0
+     * @param m number of cols, > 0
+     * @param seed of the boom positions
+     * @param stripeRows number of rows per lock stripe, 0 for a single lock over the whole board
+     * @return the board
+     */
+    public static Board chunked(int n, int m, long seed, int stripeRows) {
+        return new Board(new ChunkedCellStore(n, m, seed), stripeRows);
+    }
+    
+    private static ReentrantLock[] newStripes(int n, int stripeRows) {
+        ReentrantLock[] stripes = new ReentrantLock[(n + stripeRows - 1) / stripeRows];
+        for (int k = 0; k < stripes.length; k++) {
+            stripes[k] = new ReentrantLock();
+        }
+        return stripes;
+    }
+    
+    /** Set the counters from the cells of a flat board **/
+    private void count(byte[] cells) {
+        long hidden = 0, boomCount = 0, flagged = 0, dugCount = 0;
+        for (byte cell : cells) {
+            int state = cell & STATE_MASK;
+            if ((cell & BOOM) != 0) boomCount++;
+            else if (state != DUG) hidden++;
+            if (state == FLAGGED) flagged++;
+            else if (state == DUG) dugCount++;
         }
-        in.close();
+        hiddenSafe.set(hidden);
+        booms.set(boomCount);
+        flags.set(flagged);
+        dug.set(dugCount);
+    }
+    
+    /**
+     * Register a listener told about every cell a dig, flag or deflag changes.
+     * @param listener to add
+     */
+    public synchronized void addListener(BoardListener listener) {
+        BoardListener[] more = Arrays.copyOf(listeners, listeners.length + 1);
+        more[listeners.length] = listener;
+        listeners = more;
+    }
+    
+    public synchronized void removeListener(BoardListener listener) {
+        listeners = Arrays.stream(listeners).filter(other -> other != listener).toArray(BoardListener[]::new);
+    }
+    
+    /**
+     * Append every dig, flag and deflag that changes the board to journal, in memory while the board is locked,
+     * see MoveJournal.
+     * @param journal to append to, null to stop journaling
+     */
+    void setJournal(MoveJournal journal) {
+        this.journal = journal;
     }
     
     /** Getters */
@@ -70,6 +261,52 @@ public class Board {
         return m;
     }
     
+    public int getPlayerCount() {
+        return players.get();
+    }
+    
+    /** @return number of safe squares not dug yet, -1 if unknown **/
+    public long getHiddenSafeCount() {
+        return counted ? hiddenSafe.get() : -1;
+    }
+    
+    /** @return number of booms not dug yet, -1 if unknown **/
+    public long getBoomCount() {
+        return counted ? booms.get() : -1;
+    }
+    
+    public long getFlagCount() {
+        return flags.get();
+    }
+    
+    public long getDugCount() {
+        return dug.get();
+    }
+    
+    /** @return true once every safe square is dug, never on boards whose squares are unknown **/
+    public boolean isWon() {
+        return counted && hiddenSafe.get() == 0;
+    }
+    
+    /**
+     * Run action once the last safe square is dug, on the thread of that dig, after it released the board:
+     * at the end of exclusive(..) if the dig was run by it.
+     * @param action to run, null for none
+     */
+    public void onWon(Runnable action) {
+        onWon = action;
+    }
+    
+    /** A player started playing this board **/
+    public void playerJoined() {
+        players.incrementAndGet();
+    }
+    
+    /** A player stopped playing this board **/
+    public void playerLeft() {
+        players.decrementAndGet();
+    }
+    
     /**
      * Dig at x col y row, 
      * If out of bounds or this square is not in untouched state then do nothion
@@ -80,27 +317,90 @@ public class Board {
      * @param y the num of row
      * @return true if dig a boom else return false.
      */
-    public synchronized boolean dig(int x, int y) {
+    public boolean dig(int x, int y) {
+        return digAndReveal(x, y) < 0;
+    }
+    
+    /**
+     * Same as dig, but tells how many squares the dig revealed.
+     * 
+     * @param x the num of col
+     * @param y the num of row
+     * @return 0 if nothing was dug, the number of revealed squares if no boom was dug,
+     *         or minus the number of revealed squares if a boom was dug.
+     */
+    public int digAndReveal(int x, int y) {
         int tmp = x;
         x = y;
         y = tmp;
         
-        if (!inBound(x, y) || !board[x][y].isUntouched()) return false;
-        Square square = board[x][y];
-        square.setDug();
-        if (square.containBoom()) {
-            square.setUnBoom();
-            System.out.println("dig boom! at " + x + "," + y);
-            for (Square s : adjacentSquares(square)) {
-                int c = s.adjacentBoomCount();
-                if (c != 0)
-                    s.setAdjacentBoomCount(c - 1);
+        if (!inBound(x, y)) return 0;
+        Fill fill = fills.get();
+        fill.start(stripeOf(Math.max(x - 1, 0)));
+        int result;
+        boolean won = false;
+        try {
+            result = tryDig(fill, x, y);
+            while (result == RETRY) {
+                rollback(fill);
+                int hi = fill.hi;
+                releaseStripes(fill);
+                fill.start(fill.wanted);
+                holdStripes(fill, hi * stripeRows, hi * stripeRows);
+                result = tryDig(fill, x, y);
+            }
+            if (result != 0) {
+                publishDig(fill);
+                won = countDig(result);
             }
-            revealAdjacentBoom(square);
-            return true;
+            if (result != 0 && journal != null) journal.append(MoveJournal.DIG, y, x);
+        } finally {
+            fill.told = null;
+            releaseStripes(fill);
+            fill.trim();
+        }
+        if (result != 0) METRICS.dug(Math.abs(result), result < 0);
+        if (won) won();
+        return result;
+    }
+    
+    /**
+     * Count a dig that dug something.
+     * @param result of the dig, see digAndReveal
+     * @return true if the dig revealed the last safe square
+     */
+    private boolean countDig(int result) {
+        int revealed = Math.abs(result);
+        dug.addAndGet(revealed);
+        // a dug boom is removed, its square is revealed safe but was never counted as hidden safe
+        int safe = result < 0 ? revealed - 1 : revealed;
+        if (result < 0) booms.decrementAndGet();
+        return hiddenSafe.addAndGet(-safe) == 0 && safe > 0 && counted;
+    }
+    
+    /**
+     * One attempt of digAndReveal at x row y col, with the stripes in fill held.
+     * @return same as digAndReveal, or RETRY if the attempt needs a stripe it could not safely take
+     */
+    private int tryDig(Fill fill, int x, int y) {
+        if (!holdStripes(fill, x - 1, x + 1)) return RETRY;
+        // the listeners told once the dig is done are the ones it logged every write for,
+        // read holding a stripe so that no listener is added under exclusive(..) while the dig runs
+        fill.told = listeners;
+        fill.logAll = fill.told.length > 0;
+        int cell = cells.get(x, y);
+        if ((cell & STATE_MASK) != UNTOUCHED) return 0;
+        if ((cell & BOOM) != 0) {
+            write(fill, x, y, cell & ~BOOM);
+            for (int k = 0; k < NEIGHBOURS; k++) {
+                int i = x + DX[k], j = y + DY[k];
+                if (!inBound(i, j)) continue;
+                write(fill, i, j, cells.get(i, j) - 1);
+            }
+            int revealed = revealAdjacentBoom(fill, x, y);
+            return revealed == RETRY ? RETRY : -revealed;
         } else {
-            revealAdjacentBoom(square);
-            return false;
+            return revealAdjacentBoom(fill, x, y);
         }
     }
     
@@ -109,7 +409,7 @@ public class Board {
      * @param x the num of col
      * @param y the num of row
      */
-    public synchronized void flag(int x, int y) {
+    public void flag(int x, int y) {
 //        try {
 //            Thread.sleep(5000);
 //        } catch (InterruptedException e) {
@@ -119,8 +419,19 @@ public class Board {
         int tmp = x;
         x = y;
         y = tmp;
-        if (inBound(x, y) && board[x][y].isUntouched()) 
-            board[x][y].setFlag();
+        if (!inBound(x, y)) return;
+        ReentrantLock stripe = stripes[stripeOf(x)];
+        long held = lock(stripe);
+        try {
+            if (state(x, y) == UNTOUCHED) {
+                setState(x, y, FLAGGED);
+                flags.incrementAndGet();
+                publishCell(listeners, x, y, cells.get(x, y) & ~STATE_MASK | UNTOUCHED);
+                if (journal != null) journal.append(MoveJournal.FLAG, y, x);
+            }
+        } finally {
+            unlock(stripe, held);
+        }
     }
     
     /**
@@ -128,70 +439,443 @@ public class Board {
      * @param x the num of col
      * @param y the num of row
      */
-    public synchronized void deflag(int x, int y) {
+    public void deflag(int x, int y) {
         int tmp = x;
         x = y;
         y = tmp;
-        if (inBound(x, y) && board[x][y].isFlagged()) 
-            board[x][y].setUntouched();     
+        if (!inBound(x, y)) return;
+        ReentrantLock stripe = stripes[stripeOf(x)];
+        long held = lock(stripe);
+        try {
+            if (state(x, y) == FLAGGED) {
+                setState(x, y, UNTOUCHED);
+                flags.decrementAndGet();
+                publishCell(listeners, x, y, cells.get(x, y) & ~STATE_MASK | FLAGGED);
+                if (journal != null) journal.append(MoveJournal.DEFLAG, y, x);
+            }
+        } finally {
+            unlock(stripe, held);
+        }
     }
     
     /**
-     * Print the current board
+     * One boom next to this board, on a neighbouring part of a larger board, was dug and removed:
+     * lower the count of adjacent booms of the square at x col y row, next to it. See BoardPartition.
+     * @param x the num of col
+     * @param y the num of row
      */
-    public synchronized String lookBoard() {
-        String s = "   ";
-        for (int k = 0; k < m; k++) { 
-            s += String.format("%3d", k);
-        }
-        s += "\n";
-        for (int i = 0; i < n; i++) {
-            s += String.format("%3d ", i);
-            for (int j = 0; j < m; j++) {
-                Square square = board[i][j];
-                if (square.isUntouched()) s += " -";
-                else if (square.isFlagged()) s += " F";
-                else if (square.adjacentBoomCount() == 0) s += "  ";
-                else s += " " + square.adjacentBoomCount();
-                s += " ";
-            }            
-            s += "\n";
-        }
-        return s;
-//        String s = "";
-//        for (int i = 0; i < n; i++) {
-//            for (int j = 0; j < m; j++) {
-//                Square square = board[i][j];
-//                if (square.isUntouched()) s += "-";
-//                else if (square.isFlagged()) s += "F";
-//                else if (square.adjacentBoomCount() == 0) s += " ";
-//                else s += square.adjacentBoomCount();
-//                if (j != m - 1) s += " ";
-//            }            
-//            if (i != n - 1) s += "\n";
-//        }
-//        return s;
+    void removeAdjacentBoom(int x, int y) {
+        int tmp = x;
+        x = y;
+        y = tmp;
+        if (!inBound(x, y)) return;
+        ReentrantLock stripe = stripes[stripeOf(x)];
+        long held = lock(stripe);
+        try {
+            int cell = cells.get(x, y);
+            if ((cell & COUNT_MASK) == 0) return;
+            cells.set(x, y, cell - 1);
+            publishCell(listeners, x, y, cell);
+        } finally {
+            unlock(stripe, held);
+        }
+    }
+    
+    /**
+     * Run several moves as one: no other move or look interleaves with action,
+     * and the board locks are taken only once for all of them.
+     * @param action calling dig, flag, deflag or lookBoard on this board
+     * @return result of action
+     */
+    public <T> T exclusive(Supplier<T> action) {
+        long held = lockAll();
+        try {
+            return action.get();
+        } finally {
+            boolean won = wonInExclusive;
+            wonInExclusive = false;
+            unlockAll(held);
+            if (won) won();
+        }
+    }
+    
+    /**
+     * Run onWon now, or if this thread still holds the stripes once its dig released its own, which only
+     * exclusive(..) does, once the outermost exclusive(..) released them.
+     */
+    private void won() {
+        if (stripes[0].isHeldByCurrentThread()) {
+            wonInExclusive = true;
+            return;
+        }
+        Runnable action = onWon;
+        if (action != null) action.run();
+    }
+    
+    /**
+     * Write the whole state of the game to file in the binary format of BoardFile,
+     * so that new Board(file) resumes it. The board is locked only while its cells are copied.
+     * 
+     * @param file to write
+     * @throws IOException if the file can not be written
+     * @throws UnsupportedOperationException if the board is chunked
+     */
+    public void snapshot(File file) throws IOException {
+        byte[] copy = exclusive(this::copyCells);
+        BoardFile.write(file, n, m, copy);
+    }
+    
+    /**
+     * Copy of the packed cells, row after row. Requires the caller to run inside exclusive(..).
+     * @throws UnsupportedOperationException if the board is chunked
+     */
+    byte[] copyCells() {
+        if (!(cells instanceof FlatCellStore)) throw new UnsupportedOperationException("chunked boards have no snapshot");
+        return ((FlatCellStore) cells).cells().clone();
+    }
+    
+    /**
+     * Print the current board, without locking it.
+     * Rows are encoded once per snapshot they are changed in, and the whole frame is shared by every look
+     * until the next change. Only the first look takes the stripes, to make the first snapshot.
+     * Boards of more than MAX_LOOK_CELLS squares are too large to print whole, see lookViewport.
+     */
+    public String lookBoard() {
+        if (!lookable) return TOO_LARGE_TO_LOOK;
+        return snapshot().frame();
+    }
+    
+    /**
+     * Print part of the current board, in the same format as lookBoard.
+     * Reads the latest snapshot without locking if the board is small enough to look at whole,
+     * else locks the stripes of the shown rows only. The cost depends on the size of the part only.
+     * 
+     * @param x the num of the first col shown
+     * @param y the num of the first row shown
+     * @param w number of cols shown, clipped to the board
+     * @param h number of rows shown, clipped to the board
+     * @return the part of the board, only the column numbers line if the part is outside the board
+     */
+    public String lookViewport(int x, int y, int w, int h) {
+        int fromCol = Math.max(x, 0), toCol = (int) Math.min((long) x + Math.max(w, 0), m);
+        int fromRow = Math.max(y, 0), toRow = (int) Math.min((long) y + Math.max(h, 0), n);
+        StringBuilder s = new StringBuilder(3 * Math.max(toCol - fromCol, 0) + 4);
+        s.append("   ");
+        for (int k = fromCol; k < toCol; k++) {
+            appendPadded(s, k);
+        }
+        s.append('\n');
+        if (fromRow >= toRow || fromCol >= toCol) return s.toString();
+        if (lookable) {
+            SnapshotRow[] rows = snapshot().rows;
+            for (int i = fromRow; i < toRow; i++) {
+                appendRow(s, i, rows[i].cells, fromCol, toCol);
+            }
+            return s.toString();
+        }
+        return readRows(fromRow, toRow, () -> {
+            for (int i = fromRow; i < toRow; i++) {
+                appendRow(s, i, fromCol, toCol);
+            }
+            return s.toString();
+        });
+    }
+    
+    /**
+     * Latest snapshot, made by the first call or look, whose version listeners can pair with the moves they
+     * were told of, see BoardListener.moveDone.
+     * @return the snapshot, null if the board is too large to look at whole
+     */
+    Snapshot latestSnapshot() {
+        return lookable ? snapshot() : null;
+    }
+    
+    /** Latest snapshot, made under every stripe by the first look. Requires lookable **/
+    private Snapshot snapshot() {
+        Snapshot latest = published.get();
+        if (latest != null) return latest;
+        return exclusive(() -> {
+            if (published.get() == null) {
+                SnapshotRow[] rows = new SnapshotRow[n];
+                for (int i = 0; i < n; i++) {
+                    rows[i] = new SnapshotRow(copyRow(i));
+                }
+                published.set(new Snapshot(rows, 0));
+            }
+            return published.get();
+        });
+    }
+    
+    /**
+     * Publish the rows changed by a dig and tell fill.told about every write of it, see publish(..).
+     * Requires the stripes of those rows held, and the dig done.
+     */
+    private void publishDig(Fill fill) {
+        if (published.get() == null) {
+            tellDig(fill);
+            return;
+        }
+        synchronized (published) {
+            publish(fill.changedLo, fill.changedHi);
+            tellDig(fill);
+        }
+    }
+    
+    private void tellDig(Fill fill) {
+        if (fill.told.length == 0) return;
+        for (int k = 0; k < fill.undoSize; k += 3) {
+            notifyChanged(fill.told, fill.undo[k], fill.undo[k + 1], fill.undo[k + 2]);
+        }
+        notifyMoveDone(fill.told);
+    }
+    
+    /**
+     * Publish the row of a move changing the cell at i row j col only, which was old, and tell told about it,
+     * see publish(..). Requires the stripe of row i held, and the move done.
+     */
+    private void publishCell(BoardListener[] told, int i, int j, int old) {
+        if (published.get() == null) {
+            notifyChanged(told, i, j, old);
+            notifyMoveDone(told);
+            return;
+        }
+        synchronized (published) {
+            publish(i, i);
+            notifyChanged(told, i, j, old);
+            notifyMoveDone(told);
+        }
+    }
+    
+    /**
+     * Publish a snapshot with rows from..to copied from the board, one version after the latest.
+     * Called once the board was looked at, holding the monitor of published while the move tells its listeners
+     * too, so they hear of the moves one at a time in the order of the versions.
+     * Requires the stripes of those rows held, and the move changing them done.
+     */
+    private void publish(int from, int to) {
+        Snapshot latest = published.get();
+        SnapshotRow[] rows = latest.rows.clone();
+        for (int i = from; i <= to; i++) {
+            rows[i] = new SnapshotRow(copyRow(i));
+        }
+        published.set(new Snapshot(rows, latest.version + 1));
+    }
+    
+    /** Copy of the cells of row i, requires its stripe held **/
+    private byte[] copyRow(int i) {
+        byte[] row = new byte[m];
+        for (int j = 0; j < m; j++) {
+            row[j] = (byte) cells.get(i, j);
+        }
+        return row;
+    }
+    
+    /**
+     * Run action holding the stripes of rows fromRow..toRow-1 only, so that it sees those rows between two moves.
+     * @param fromRow first row, requires 0 <= fromRow < toRow <= number of rows
+     * @param toRow row after the last one
+     * @param action reading the rows with cellAt(..)
+     * @return result of action
+     */
+    <T> T readRows(int fromRow, int toRow, Supplier<T> action) {
+        int lo = stripeOf(fromRow), hi = stripeOf(toRow - 1);
+        long held = 0;
+        for (int k = lo; k <= hi; k++) {
+            held = lock(stripes[k]);
+        }
+        try {
+            return action.get();
+        } finally {
+            for (int k = hi; k > lo; k--) {
+                stripes[k].unlock();
+            }
+            unlock(stripes[lo], held);
+        }
+    }
+    
+    /**
+     * Packed cell at row i col j, see the cell constants. Requires the stripe of row i held,
+     * inside readRows(..) or exclusive(..).
+     */
+    int cellAt(int i, int j) {
+        return cells.get(i, j);
     }
     
     @Override
-    public synchronized String toString() {
-      String s = "   ";
-      for (int k = 0; k < m; k++) { 
-          s += String.format("%3d", k);
+    public String toString() {
+      if (!lookable) return TOO_LARGE_TO_LOOK;
+      long held = lockAll();
+      try {
+          return renderBooms();
+      } finally {
+          unlockAll(held);
       }
-      s += "\n";
-      
+    }
+    
+    /** Whole board showing booms, requires every stripe held **/
+    private String renderBooms() {
+      StringBuilder s = new StringBuilder(renderHeader(m));
       for (int i = 0; i < n; i++) {
-          s += String.format("%3d ", i);
+          appendPadded(s, i).append(' ');
           for (int j = 0; j < m; j++) {
-              Square square = board[i][j];
-              if (square.containBoom()) s += " B";
-              else s+= " O";
-              s += " ";
+              if ((cells.get(i, j) & BOOM) != 0) s.append(" B ");
+              else s.append(" O ");
           }
-          s += "\n";
+          s.append('\n');
       }
-      return s;
+      return s.toString();
+    }
+    
+    /** Column numbers line on top of the board **/
+    private static String renderHeader(int m) {
+        StringBuilder s = new StringBuilder(3 * m + 4);
+        s.append("   ");
+        for (int k = 0; k < m; k++) { 
+            appendPadded(s, k);
+        }
+        return s.append('\n').toString();
+    }
+    
+    /** Append cols from..to-1 of line i of the board as seen by players, requires the stripe of row i held **/
+    private StringBuilder appendRow(StringBuilder s, int i, int from, int to) {
+        appendPadded(s, i).append(' ');
+        for (int j = from; j < to; j++) {
+            appendCell(s, cells.get(i, j));
+        }
+        return s.append('\n');
+    }
+    
+    /** Append cols from..to-1 of line i of a snapshot, whose cells are row **/
+    private static StringBuilder appendRow(StringBuilder s, int i, byte[] row, int from, int to) {
+        appendPadded(s, i).append(' ');
+        for (int j = from; j < to; j++) {
+            appendCell(s, row[j]);
+        }
+        return s.append('\n');
+    }
+    
+    /** Append a packed cell as seen by players **/
+    private static void appendCell(StringBuilder s, int cell) {
+        if ((cell & STATE_MASK) == UNTOUCHED) s.append(" - ");
+        else if ((cell & STATE_MASK) == FLAGGED) s.append(" F ");
+        else if ((cell & COUNT_MASK) == 0) s.append("   ");
+        else s.append(' ').append((char) ('0' + (cell & COUNT_MASK))).append(' ');
+    }
+    
+    /** Append k right aligned in 3 chars, same as String.format("%3d", k) **/
+    static StringBuilder appendPadded(StringBuilder s, int k) {
+        if (k >= 0 && k < 10) s.append("  ");
+        else if (k >= 0 && k < 100) s.append(' ');
+        return s.append(k);
+    }
+    
+    /**
+     * Take a stripe, recording the wait if it was held by another thread.
+     * @return time it was taken, for unlock(..)
+     */
+    private static long lock(ReentrantLock stripe) {
+        if (!stripe.tryLock()) {
+            long start = System.nanoTime();
+            stripe.lock();
+            long now = System.nanoTime();
+            METRICS.lockWaited(now - start);
+            return now;
+        }
+        return System.nanoTime();
+    }
+    
+    /**
+     * Release a stripe, recording how long the stripes were held.
+     * @param held time the first of the stripes was taken, as returned by lock(..)
+     */
+    private static void unlock(ReentrantLock stripe, long held) {
+        METRICS.lockHeld(System.nanoTime() - held);
+        stripe.unlock();
+    }
+    
+    /** Take every stripe, return the time they were all held **/
+    private long lockAll() {
+        long held = 0;
+        for (ReentrantLock stripe : stripes) {
+            held = lock(stripe);
+        }
+        return held;
+    }
+    
+    private void unlockAll(long held) {
+        for (int k = stripes.length - 1; k > 0; k--) {
+            stripes[k].unlock();
+        }
+        unlock(stripes[0], held);
+    }
+    
+    /** Stripe of row i **/
+    private int stripeOf(int i) {
+        return i / stripeRows;
+    }
+    
+    /**
+     * Make sure fill holds the stripes of rows from..to (clipped to the board).
+     * Higher stripes are simply locked, lower ones only tried, since fill may already hold higher ones.
+     * @return false if a lower stripe is busy, then fill.wanted is the lowest stripe needed
+     */
+    private boolean holdStripes(Fill fill, int from, int to) {
+        int lo = stripeOf(Math.max(from, 0));
+        int hi = stripeOf(Math.min(to, n - 1));
+        while (fill.hi < hi) {
+            long held = lock(stripes[fill.hi + 1]);
+            if (fill.hi < fill.lo) fill.held = held;
+            fill.hi++;
+        }
+        while (lo < fill.lo) {
+            if (!stripes[fill.lo - 1].tryLock()) {
+                fill.wanted = lo;
+                return false;
+            }
+            fill.lo--;
+        }
+        return true;
+    }
+    
+    private void releaseStripes(Fill fill) {
+        if (fill.hi < fill.lo) return;
+        for (int k = fill.hi; k > fill.lo; k--) {
+            stripes[k].unlock();
+        }
+        unlock(stripes[fill.lo], fill.held);
+        fill.hi = fill.lo - 1;
+    }
+    
+    /**
+     * Set the cell at i row j col during a dig, remembering its old value in case the dig is retried,
+     * or for listeners once the dig is done.
+     */
+    private void write(Fill fill, int i, int j, int cell) {
+        if (fill.lo > 0 || fill.logAll) fill.log(i, j, cells.get(i, j));
+        cells.set(i, j, cell);
+        fill.changed(i);
+    }
+    
+    /** Undo every write of a dig attempt **/
+    private void rollback(Fill fill) {
+        for (int k = fill.undoSize - 3; k >= 0; k -= 3) {
+            cells.set(fill.undo[k], fill.undo[k + 1], fill.undo[k + 2]);
+        }
+        fill.undoSize = 0;
+    }
+    
+    /** Tell listeners the cells changed by a move are all told, requires their stripes held **/
+    private void notifyMoveDone(BoardListener[] told) {
+        for (BoardListener listener : told) {
+            listener.moveDone();
+        }
+    }
+    
+    /** Tell listeners the cell at i row j col changed from old, requires its stripe held **/
+    private void notifyChanged(BoardListener[] told, int i, int j, int old) {
+        for (BoardListener listener : told) {
+            listener.cellChanged(i, j, old, cells.get(i, j));
+        }
     }
     
     /**
@@ -204,40 +888,182 @@ public class Board {
         return x < n && y < m && x >= 0 && y >= 0;
     }
     
+    /** State bits of the cell at i row j col **/
+    private int state(int i, int j) {
+        return cells.get(i, j) & STATE_MASK;
+    }
+    
+    /** Replace the state bits of the cell at i row j col **/
+    private void setState(int i, int j, int state) {
+        cells.set(i, j, (cells.get(i, j) & ~STATE_MASK) | state);
+    }
+    
     /**
      * Indicating how many adjacent squares contain mines,
-     * if no mines are adjacent, the square becomes blank, and all adjacent squares will be recursively revealed.
-     * @param square in the board
-     */
-    private void revealAdjacentBoom(Square square) {
-        int boomCount = 0;
-        ArrayList<Square>  neighbours = adjacentSquares(square);
-        for (Square s : neighbours) 
-            if (s.containBoom()) boomCount++;
-        square.setDug();
-        square.setAdjacentBoomCount(boomCount);
-        if (boomCount != 0) return;
-        for (Square s : neighbours) {  
-            if(s.isUntouched()) revealAdjacentBoom(s);
-        }
-    }
-    
-    /**
-     * Find all adjacent squares around this square.
-     * @param square
-     * @return all adjacent squares around this square
-     */
-    private ArrayList<Square> adjacentSquares(Square square) {
-        ArrayList<Square>  neighbours = new ArrayList<Square>();
-        int x = square.getX();
-        int y = square.getY();
-        for (int i = -1; i < 2; i++) {
-            for (int j = -1; j < 2; j++) {
-                if (inBound(x + i, y + j))
-                    neighbours.add(board[x+i][y+j]);
+     * if no mines are adjacent, the square becomes blank, and all adjacent squares will be revealed too.
+     * The flood fill runs on an explicit stack of cells, so its depth is not limited by the thread stack.
+     * @param fill state of the running dig
+     * @param x the num of row
+     * @param y the num of col
+     * @return number of squares revealed, or RETRY
+     */
+    private int revealAdjacentBoom(Fill fill, int x, int y) {
+        int revealed = 1;
+        int count = reveal(fill, x, y);
+        if (count == RETRY) return RETRY;
+        if (count == 0) fill.push(x, y);
+        while (fill.top > 0) {
+            int col = fill.pending[--fill.top];
+            int row = fill.pending[--fill.top];
+            for (int k = 0; k < NEIGHBOURS; k++) {
+                int i = row + DX[k], j = col + DY[k];
+                if (!inBound(i, j) || state(i, j) != UNTOUCHED) continue;
+                revealed++;
+                count = reveal(fill, i, j);
+                if (count == RETRY) return RETRY;
+                if (count == 0) fill.push(i, j);
+            }
+        }
+        return revealed;
+    }
+    
+    /**
+     * Dig the untouched cell at row, col, its count of adjacent booms is already in its COUNT bits.
+     * The neighbours' stripes are taken too, the flood fill visits them if the count is 0.
+     * @param fill state of the running dig
+     * @return number of booms adjacent to the cell, or RETRY
+     */
+    private int reveal(Fill fill, int row, int col) {
+        if (!holdStripes(fill, row - 1, row + 1)) return RETRY;
+        int cell = cells.get(row, col);
+        write(fill, row, col, cell | DUG);
+        return cell & COUNT_MASK;
+    }
+    
+    /**
+     * Per thread state of a dig: the stripes it holds, its flood fill stack, and the old value of
+     * every cell it changed, so the dig can be undone and retried, and listeners told about it.
+     * Buffers are reused across digs.
+     */
+    private static final class Fill {
+        /** Held stripes are lo..hi, none if hi < lo **/
+        int lo;
+        int hi;
+        /** Time the first held stripe was taken **/
+        long held;
+        /** Lowest stripe needed after a failed attempt **/
+        int wanted;
+        /** Listeners of the attempt, read once when it starts, null between digs **/
+        BoardListener[] told;
+        /** Log every write, not only those that may have to be undone, if told is not empty **/
+        boolean logAll;
+        /** Row, col pairs of blank cells whose neighbours are still to reveal **/
+        int[] pending = new int[64];
+        int top;
+        /** Row, col, old cell triples **/
+        int[] undo = new int[63];
+        int undoSize;
+        /** Rows changed by the attempt are within changedLo..changedHi, none if changedHi < changedLo **/
+        int changedLo;
+        int changedHi;
+        
+        /** Reset for a new attempt, holding no stripe, lowest stripe expected first **/
+        void start(int lowest) {
+            lo = lowest;
+            hi = lowest - 1;
+            top = 0;
+            undoSize = 0;
+            changedLo = Integer.MAX_VALUE;
+            changedHi = -1;
+        }
+        
+        void changed(int row) {
+            if (row < changedLo) changedLo = row;
+            if (row > changedHi) changedHi = row;
+        }
+        
+        void push(int row, int col) {
+            if (top + 2 > pending.length) pending = Arrays.copyOf(pending, 2 * pending.length);
+            pending[top++] = row;
+            pending[top++] = col;
+        }
+        
+        void log(int row, int col, int cell) {
+            if (undoSize + 3 > undo.length) undo = Arrays.copyOf(undo, 2 * undo.length);
+            undo[undoSize++] = row;
+            undo[undoSize++] = col;
+            undo[undoSize++] = cell;
+        }
+        
+        /** Drop buffers grown by an unusually large fill **/
+        void trim() {
+            if (pending.length > MAX_KEPT_BUFFER) pending = new int[64];
+            if (undo.length > MAX_KEPT_BUFFER) undo = new int[63];
+        }
+    }
+    
+    /** Cells of a row of a snapshot, and their rendering once a look needed it **/
+    private static final class SnapshotRow {
+        final byte[] cells;
+        /** Rendering of the row, null until rendered **/
+        String text;
+        
+        SnapshotRow(byte[] cells) {
+            this.cells = cells;
+        }
+        
+        String text(int i) {
+            String rendered = text;
+            if (rendered == null) {
+                rendered = appendRow(new StringBuilder(3 * cells.length + 5), i, cells, 0, cells.length).toString();
+                text = rendered;
+            }
+            return rendered;
+        }
+    }
+    
+    /** Immutable board as left by a move, and its rendering once a look needed it **/
+    static final class Snapshot {
+        private final SnapshotRow[] rows;
+        /** Number of moves published since the first snapshot **/
+        private final long version;
+        /** Rendering of the whole board, null until rendered **/
+        private String frame;
+        
+        private Snapshot(SnapshotRow[] rows, long version) {
+            this.rows = rows;
+            this.version = version;
+        }
+        
+        /** @return number of moves published since the first snapshot, up to this one **/
+        long version() {
+            return version;
+        }
+        
+        /** @return the packed cell at row i col j, see the cell constants **/
+        int cellAt(int i, int j) {
+            return rows[i].cells[j];
+        }
+        
+        String frame() {
+            String rendered = frame;
+            if (rendered != null) return rendered;
+            String header = renderHeader(rows[0].cells.length);
+            String[] texts = new String[rows.length];
+            int length = header.length();
+            for (int i = 0; i < rows.length; i++) {
+                texts[i] = rows[i].text(i);
+                length += texts[i].length();
+            }
+            StringBuilder s = new StringBuilder(length);
+            s.append(header);
+            for (String text : texts) {
+                s.append(text);
             }
+            rendered = s.toString();
+            frame = rendered;
+            return rendered;
         }
-        return neighbours;
     }
     
 }
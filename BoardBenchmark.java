@@ -0,0 +1,278 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Benchmarks of Board and of the request path of MinesweeperServer, each run on one thread
+ * then on several threads sharing the board, with the bytes allocated per call.
+ * 
+ * <br> Usage: java BoardBenchmark [--threads N] [--only TEXT] [--out FILE]
+ * <br> N is the number of contending threads, the number of processors by default.
+ * <br> TEXT runs only the benchmarks whose name contains it.
+ * <br> FILE receives the results as JSON if its name ends with ".json", else as CSV, to compare runs.
+ */
+public class BoardBenchmark {
+    
+    /** Side of the boards dug, flagged and filled **/
+    private static final int SIZE = 1024;
+    /** Rows per lock stripe, so contending threads mostly take different stripes **/
+    private static final int STRIPE_ROWS = 16;
+    /** Boom probabilities of the dense and sparse boards **/
+    private static final double DENSE = 0.25;
+    private static final double SPARSE = 0.05;
+    /** Sides of the boards looked at **/
+    private static final int[] LOOK_SIZES = {10, 100, 1000};
+    /** Side of the board of the request path benchmark, replies to moves show the whole board **/
+    private static final int REQUEST_SIZE = 100;
+    /** Client lines of the request path benchmark **/
+    private static final String[] LINES = {"dig 3 4", "flag 5 6", "deflag 5 6", "look", "help", "flag 7 8", "deflag 7 8", "bogus"};
+    
+    private static final List<Bench.Result> results = new ArrayList<>();
+    /** Games of the running benchmark, closed once it ran **/
+    private static final List<Game> games = new ArrayList<>();
+    private static int threads = Runtime.getRuntime().availableProcessors();
+    private static String only = "";
+    
+    public static void main(String[] args) throws IOException {
+        File out = null;
+        for (int k = 0; k < args.length; k++) {
+            if (args[k].equals("--threads")) threads = Integer.parseInt(args[++k]);
+            else if (args[k].equals("--only")) only = args[++k];
+            else if (args[k].equals("--out")) out = new File(args[++k]);
+            else throw new IllegalArgumentException("usage: BoardBenchmark [--threads N] [--only TEXT] [--out FILE]");
+        }
+        
+        byte[] dense = cells(SIZE, SIZE, DENSE, 1);
+        byte[] sparse = cells(SIZE, SIZE, SPARSE, 2);
+        byte[] empty = cells(SIZE, SIZE, 0, 3);
+        bench("dig dense", () -> digs(dense));
+        bench("dig sparse", () -> digs(sparse));
+        bench("flood fill " + SIZE + "x" + SIZE, () -> floods(empty));
+        bench("flag + deflag", () -> {
+            Board board = board(dense);
+            return () -> new Mover(board)::flagDeflag;
+        });
+        for (int size : LOOK_SIZES) {
+            byte[] cells = cells(size, size, DENSE, size);
+            bench("look " + size + "x" + size, () -> {
+                Board board = board(size, size, cells);
+                return () -> () -> board.lookBoard().length();
+            });
+            bench("flag + look " + size + "x" + size, () -> {
+                Board board = board(size, size, cells);
+                return () -> new Mover(board)::flagLook;
+            });
+            bench("9 looks + flag " + size + "x" + size, () -> {
+                Board board = board(size, size, cells);
+                return () -> new Mover(board)::mostlyLook;
+            });
+            bench("frame full " + size + "x" + size, () -> {
+                Game game = game(size, size, cells);
+                return () -> () -> game.getFrames().frame(new NullSession(game), 0, 0, size, size).length;
+            });
+            bench("flag + frame diff " + size + "x" + size, () -> {
+                Game game = game(size, size, cells);
+                return () -> new Mover(game.getBoard(), new NullSession(game))::flagFrame;
+            });
+            if (only.isEmpty() || "frame".contains(only)) printFrameSizes(size, cells);
+        }
+        MinesweeperServer server = new MinesweeperServer(0, true);
+        byte[] request = cells(REQUEST_SIZE, REQUEST_SIZE, DENSE, 4);
+        bench("handleRequest " + REQUEST_SIZE + "x" + REQUEST_SIZE, () -> {
+            Game game = game(REQUEST_SIZE, REQUEST_SIZE, request);
+            return () -> {
+                Session session = new NullSession(game);
+                int[] next = {0};
+                return () -> server.handleRequest(session, LINES[next[0]++ & 7]).length();
+            };
+        });
+        
+        if (out != null) Bench.write(results, out);
+    }
+    
+    /**
+     * Run a benchmark on one thread, then on threads threads sharing the state made by setup.
+     * @param setup makes the shared state, and from it the operation of each thread
+     */
+    private static void bench(String name, Supplier<Supplier<IntSupplier>> setup) {
+        if (!name.contains(only)) return;
+        results.add(Bench.run(name, 1, setup.get()));
+        closeGames();
+        if (threads > 1) results.add(Bench.run(name, threads, setup.get()));
+        closeGames();
+    }
+    
+    /** A fresh game of a fresh board of a copy of cells, closed by the next closeGames() **/
+    private static Game game(int n, int m, byte[] cells) {
+        Game game = new Game(0, board(n, m, cells), Runnable::run);
+        games.add(game);
+        return game;
+    }
+    
+    private static void closeGames() {
+        for (Game game : games) {
+            game.close();
+        }
+        games.clear();
+    }
+    
+    /** Random n*m cells with the given boom probability and their counts **/
+    private static byte[] cells(int n, int m, double probability, long seed) {
+        FlatCellStore store = new FlatCellStore(n, m);
+        SplittableRandom random = new SplittableRandom(seed);
+        byte[] cells = store.cells();
+        for (int k = 0; k < cells.length; k++) {
+            if (random.nextDouble() < probability) cells[k] = Board.BOOM;
+        }
+        store.countBooms();
+        return cells;
+    }
+    
+    /** A fresh board of SIZE*SIZE cells **/
+    private static Board board(byte[] cells) {
+        return board(SIZE, SIZE, cells);
+    }
+    
+    /** A fresh board of a copy of cells **/
+    private static Board board(int n, int m, byte[] cells) {
+        FlatCellStore store = new FlatCellStore(n, m);
+        System.arraycopy(cells, 0, store.cells(), 0, cells.length);
+        return new Board(store, STRIPE_ROWS);
+    }
+    
+    /**
+     * Digs at random squares of a board, replaced by a fresh one once a quarter of its squares were dug at.
+     * Threads share the board and the count of digs.
+     */
+    private static Supplier<IntSupplier> digs(byte[] cells) {
+        AtomicReference<Board> shared = new AtomicReference<>(board(cells));
+        AtomicLong count = new AtomicLong();
+        long period = SIZE * SIZE / 4;
+        return () -> {
+            SplittableRandom random = new SplittableRandom();
+            return () -> {
+                if (count.incrementAndGet() % period == 0) shared.set(board(cells));
+                return shared.get().digAndReveal(random.nextInt(SIZE), random.nextInt(SIZE));
+            };
+        };
+    }
+    
+    /** Each call digs a fresh board without booms, revealing it whole **/
+    private static Supplier<IntSupplier> floods(byte[] cells) {
+        return () -> () -> board(cells).digAndReveal(0, 0);
+    }
+    
+    /**
+     * Print the bytes of a look in the text protocol and of the frames of the binary protocol,
+     * on a fresh board and once a tenth of it is dug.
+     */
+    private static void printFrameSizes(int size, byte[] cells) {
+        Game game = game(size, size, cells);
+        Board board = game.getBoard();
+        Session session = new NullSession(game);
+        SplittableRandom random = new SplittableRandom(size);
+        for (int round = 0; round < 2; round++) {
+            int text = board.lookBoard().length();
+            int full = game.getFrames().frame(new NullSession(game), 0, 0, size, size).length;
+            game.getFrames().frame(session, 0, 0, size, size);
+            board.flag(random.nextInt(size), random.nextInt(size));
+            int diff = game.getFrames().frame(session, 0, 0, size, size).length;
+            System.out.printf("frame bytes %dx%d %s: text %d, full %d, diff of a flag %d%n",
+                    size, size, round == 0 ? "fresh" : "a tenth dug", text, full, diff);
+            for (int k = 0; k < size * size / 10; k++) {
+                board.digAndReveal(random.nextInt(size), random.nextInt(size));
+            }
+        }
+        closeGames();
+    }
+    
+    /** Moves of one thread on a shared board **/
+    private static final class Mover {
+        private final Board board;
+        private final SplittableRandom random = new SplittableRandom();
+        /** Receiving the frames of flagFrame, null if none **/
+        private final Session session;
+        
+        Mover(Board board) {
+            this(board, null);
+        }
+        
+        Mover(Board board, Session session) {
+            this.board = board;
+            this.session = session;
+        }
+        
+        int flagDeflag() {
+            int x = random.nextInt(board.getColNum());
+            int y = random.nextInt(board.getRowNum());
+            board.flag(x, y);
+            board.deflag(x, y);
+            return x;
+        }
+        
+        /** A move then a look, so the look renders the changed row again **/
+        int flagLook() {
+            int x = random.nextInt(board.getColNum());
+            int y = random.nextInt(board.getRowNum());
+            board.flag(x, y);
+            board.deflag(x, y);
+            return board.lookBoard().length();
+        }
+        
+        /** One call in ten flags and deflags, the others look, as the traffic of a mostly watching crowd **/
+        int mostlyLook() {
+            if (random.nextInt(10) == 0) return flagDeflag();
+            return board.lookBoard().length();
+        }
+        
+        /** A move then a frame of the binary protocol, a diff since the previous one **/
+        int flagFrame() {
+            int x = random.nextInt(board.getColNum());
+            int y = random.nextInt(board.getRowNum());
+            board.flag(x, y);
+            board.deflag(x, y);
+            return session.game.getFrames().frame(session, 0, 0, board.getColNum(), board.getRowNum()).length;
+        }
+    }
+    
+    /** A session that drops what it is sent **/
+    private static final class NullSession extends Session {
+        
+        NullSession(Game game) {
+            this.game = game;
+        }
+        
+        @Override
+        protected void flushSoon() {
+            for (byte[] message : output.drain()) {
+                output.written(message.length);
+            }
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+        
+        @Override
+        public void close() {
+            // always open
+        }
+        
+        @Override
+        public void abort() {
+            // always open
+        }
+    }
+    
+}
@@ -0,0 +1,182 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reading and writing board files, in the text format of MinesweeperServer.main(..) or in a binary format:
+ * <pre>
+ *   FILE ::= HEADER BOOMS CELLS?
+ *   HEADER ::= "MSWB" VERSION FLAGS 0x00 0x00 X Y     (16 bytes, ints big endian)
+ *   VERSION ::= 0x01
+ *   FLAGS ::= 0x00 | 0x01                              (0x01 if CELLS follows)
+ *   BOOMS ::= ceil(X * Y / 8) bytes                    (bit k % 8 of byte k / 8 is set if square k has a boom)
+ *   CELLS ::= X * Y bytes                              (packed cell k, see the Board cell constants)
+ * </pre>
+ * where square k is at row k / X, col k % X. A file with only BOOMS is a new board,
+ * a snapshot of a game in progress also has CELLS with every square's state and count.
+ * Binary files are read through a memory mapping, so loading costs little more than the mapping.
+ */
+class BoardFile {
+    
+    static final byte[] MAGIC = {'M', 'S', 'W', 'B'};
+    static final int VERSION = 1;
+    static final int HAS_CELLS = 0x01;
+    static final int HEADER_SIZE = 16;
+    /** Largest part of a file mapped at once **/
+    private static final int WINDOW = 1 << 30;
+    
+    private BoardFile() {
+        // static methods only
+    }
+    
+    /**
+     * Read a board file in either format.
+     * @param file to read
+     * @return its cells
+     * @throws IOException if the file can not be read or is not a board file
+     */
+    static FlatCellStore read(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] magic = new byte[MAGIC.length];
+            int read = 0;
+            while (read < magic.length) {
+                int k = in.read(magic, read, magic.length - read);
+                if (k < 0) break;
+                read += k;
+            }
+            if (read == magic.length && Arrays.equals(magic, MAGIC)) return readBinary(file.toPath());
+        }
+        return readText(file);
+    }
+    
+    /**
+     * Read a file in the text format, streaming over its bytes with no per token allocation.
+     */
+    static FlatCellStore readText(File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            int m = readInt(in);
+            int n = readInt(in);
+            FlatCellStore store = new FlatCellStore(n, m);
+            byte[] cells = store.cells();
+            for (int k = 0; k < cells.length; k++) {
+                if (readInt(in) != 0) cells[k] = Board.BOOM;
+            }
+            store.countBooms();
+            return store;
+        }
+    }
+    
+    /** Next non negative int of a text board, skipping separators **/
+    private static int readInt(InputStream in) throws IOException {
+        int c = in.read();
+        while (c == ' ' || c == '\n' || c == '\r' || c == '\t') c = in.read();
+        if (c < 0) throw new EOFException("board file ends too early");
+        if (c < '0' || c > '9') throw new IOException("unexpected character '" + (char) c + "' in board file");
+        long value = 0;
+        while (c >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            if (value > Integer.MAX_VALUE) throw new IOException("number too large in board file");
+            c = in.read();
+        }
+        return (int) value;
+    }
+    
+    /**
+     * Read a file in the binary format through a memory mapping.
+     */
+    static FlatCellStore readBinary(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) throw new IOException("truncated board file");
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            for (byte b : MAGIC) {
+                if (header.get() != b) throw new IOException("not a binary board file");
+            }
+            int version = header.get();
+            if (version != VERSION) throw new IOException("unsupported board file version " + version);
+            int flags = header.get();
+            header.getShort();
+            int m = header.getInt();
+            int n = header.getInt();
+            FlatCellStore store = new FlatCellStore(n, m);
+            byte[] cells = store.cells();
+            long boomBytes = (cells.length + 7) / 8;
+            long expected = HEADER_SIZE + boomBytes + ((flags & HAS_CELLS) != 0 ? cells.length : 0);
+            if (channel.size() < expected) throw new IOException("truncated board file");
+            // counts are not trusted from the file, they are computed again below
+            if ((flags & HAS_CELLS) != 0) {
+                for (long done = 0; done < cells.length; done += WINDOW) {
+                    int length = (int) Math.min(WINDOW, cells.length - done);
+                    channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + boomBytes + done, length)
+                            .get(cells, (int) done, length);
+                }
+                // both state bits set is no state, see the Board cell constants
+                for (int k = 0; k < cells.length; k++) {
+                    if ((cells[k] & Board.STATE_MASK) == Board.STATE_MASK) {
+                        throw new IOException("bad state of square " + k + " in board file");
+                    }
+                }
+            } else {
+                for (long done = 0; done < boomBytes; done += WINDOW) {
+                    int length = (int) Math.min(WINDOW, boomBytes - done);
+                    MappedByteBuffer booms = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + done, length);
+                    int k = (int) (done * 8);
+                    for (int b = 0; b < length; b++, k += 8) {
+                        int bits = booms.get(b);
+                        if (bits == 0) continue;
+                        for (int bit = 0; bit < 8 && k + bit < cells.length; bit++) {
+                            if ((bits & (1 << bit)) != 0) cells[k + bit] = Board.BOOM;
+                        }
+                    }
+                }
+            }
+            store.countBooms();
+            return store;
+        }
+    }
+    
+    /**
+     * Write cells in the binary format, with the CELLS part.
+     * The file is written aside then moved in place, so a reader never sees half a file.
+     * 
+     * @param file to write
+     * @param n number of rows
+     * @param m number of cols
+     * @param cells packed cells, row after row
+     * @throws IOException if the file can not be written
+     */
+    static void write(File file, int n, int m, byte[] cells) throws IOException {
+        Path path = file.toPath();
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        byte[] booms = new byte[(cells.length + 7) / 8];
+        for (int k = 0; k < cells.length; k++) {
+            if ((cells[k] & Board.BOOM) != 0) booms[k >>> 3] |= 1 << (k & 7);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).put((byte) VERSION).put((byte) HAS_CELLS).putShort((short) 0).putInt(m).putInt(n).flip();
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer[] parts = {header, ByteBuffer.wrap(booms), ByteBuffer.wrap(cells)};
+            while (parts[2].hasRemaining()) {
+                channel.write(parts);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+}
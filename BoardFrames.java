@@ -0,0 +1,318 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Binary frames of the binary protocol, and the recent changes of a board they are encoded from.
+ * A client switches to the binary protocol with "hello 1" and back with "hello 0"; it still sends
+ * text lines, but every reply and update it gets is then a frame:
+ * <pre>
+ *   FRAME ::= TYPE LENGTH PAYLOAD
+ *   TYPE ::= TEXT | FULL | DIFF                      one byte, 0, 1 or 2
+ *   LENGTH ::= INT                                   bytes of the payload
+ *   TEXT ::= UTF-8 message, the text protocol line without its separator
+ *   FULL ::= VERSION X Y WIDTH HEIGHT RUN*
+ *   DIFF ::= FROM VERSION COUNT (VARINT VARINT SYMBOL){COUNT}
+ *   RUN ::= SYMBOL + 16 * (N - 1)                    one byte, for N in 1..15
+ *         | SYMBOL + 16 * 15  VARINT                 for N = 16 + VARINT
+ * </pre>
+ * where INT is a big endian int, VERSION and FROM big endian longs, VARINT an unsigned LEB128 varint,
+ * and SYMBOL 0..8 for a dug square with that many adjacent booms, 9 untouched, 10 flagged.
+ * A FULL frame shows WIDTH cols by HEIGHT rows from col X row Y, as runs of N equal squares row after row.
+ * A DIFF frame lists the col, row and symbol of the squares of the same part of the board
+ * changed from version FROM, the version of the client's last frame, to VERSION.
+ * A board's version counts its moves, since it was first looked at if it is small enough to look at whole,
+ * else since its BoardFrames was made.
+ * 
+ * Frames of boards small enough to look at whole are encoded without locking the board: FULL frames
+ * from the latest snapshot the looks of the text protocol read, at the version published with it,
+ * and DIFF frames from the changes recorded since the client's last frame. Frames of larger boards
+ * lock the stripes of the rows they show.
+ */
+public class BoardFrames implements BoardListener {
+    
+    /** Frame types **/
+    static final int TEXT = 0;
+    static final int FULL = 1;
+    static final int DIFF = 2;
+    /** Symbols of squares in frames **/
+    static final int UNTOUCHED = 9;
+    static final int FLAGGED = 10;
+    /** Bytes of a frame before its payload **/
+    private static final int HEADER = 5;
+    /** Changes kept, older versions get a full frame **/
+    private static final int CAPACITY = 1 << 16;
+    /** Longest run of a single RUN byte **/
+    private static final int SHORT_RUN = 15;
+    
+    /** The board framed **/
+    private final Board board;
+    /** Ring of the last CAPACITY changes, change c at index c % CAPACITY, told once versions[c % CAPACITY] moves were done **/
+    private final int[] rows = new int[CAPACITY];
+    private final int[] cols = new int[CAPACITY];
+    private final byte[] symbols = new byte[CAPACITY];
+    private final long[] versions = new long[CAPACITY];
+    /** Number of changes so far **/
+    private long changes = 0;
+    /** Version of the board when this was made **/
+    private final long first;
+    /** Version of the board, moves done so far **/
+    private long version;
+    
+    // Abstraction function:
+    //      Represent the changes of board numbered 0..changes-1 in the moves from version first to version,
+    //      of which the last CAPACITY are change c: square at row rows[c % CAPACITY] and col cols[c % CAPACITY]
+    //      is now symbols[c % CAPACITY], told once versions[c % CAPACITY] moves were done
+    
+    // Rep invariant:
+    //       0 <= first <= version, changes >= 0, symbols are in 0..FLAGGED,
+    //       versions of the kept changes are in first..version and never decrease from one change to the next
+    
+    // Thread safety
+    //      The ring, changes and version are guarded by this. This is added to the board under exclusive(..),
+    //      so it is told every move that changes the board from version first on.
+    //      Once the board was looked at, moves are told one at a time, right after publishing the snapshot
+    //      of their version, so a snapshot and the changes up to its version agree.
+    //      On larger boards a change is told while the stripe of its row is held, so frames encoded holding
+    //      the stripes of their rows see every change of those rows up to version.
+    
+    /**
+     * Make a BoardFrames on board, from version 0 on.
+     * @param board to frame
+     */
+    public BoardFrames(Board board) {
+        this.board = board;
+        this.first = board.exclusive(() -> {
+            board.addListener(this);
+            Board.Snapshot snapshot = board.latestSnapshot();
+            return snapshot == null ? 0 : snapshot.version();
+        });
+        this.version = first;
+    }
+    
+    /** Stop recording the changes of the board, for good **/
+    public void close() {
+        board.removeListener(this);
+    }
+    
+    @Override
+    public synchronized void cellChanged(int row, int col, int cell) {
+        int k = (int) (changes++ % CAPACITY);
+        rows[k] = row;
+        cols[k] = col;
+        symbols[k] = (byte) symbol(cell);
+        versions[k] = version;
+    }
+    
+    @Override
+    public synchronized void moveDone() {
+        version++;
+    }
+    
+    /**
+     * Frame of part of the board for session: a DIFF from the session's last frame if it showed the same part
+     * of this board and the changes since are still kept and fewer than the squares, else a FULL frame.
+     * Records the frame as the session's last one. Locks the shown rows only if the board is too large
+     * to look at whole.
+     * 
+     * @param session the frame is for
+     * @param x the num of the first col shown
+     * @param y the num of the first row shown
+     * @param w number of cols shown, clipped to the board
+     * @param h number of rows shown, clipped to the board
+     * @return the frame
+     */
+    public byte[] frame(Session session, int x, int y, int w, int h) {
+        int fromCol = Math.max(x, 0), toCol = (int) Math.min((long) x + Math.max(w, 0), board.getColNum());
+        int fromRow = Math.max(y, 0), toRow = (int) Math.min((long) y + Math.max(h, 0), board.getRowNum());
+        int width = Math.max(toCol - fromCol, 0), height = Math.max(toRow - fromRow, 0);
+        boolean samePart = session.frameBoard == board && session.frameX == fromCol && session.frameY == fromRow
+                && session.frameWidth == width && session.frameHeight == height;
+        long since = session.frameVersion;
+        Buffer frame = new Buffer();
+        Board.Snapshot snapshot = board.latestSnapshot();
+        if (height == 0 || width == 0 || snapshot != null) {
+            // no square to lock, or a snapshot to read
+            long[] changes = samePart ? changesSince(since, (long) width * height) : null;
+            if (changes != null) {
+                encodeDiff(frame, since, changes, fromCol, toCol, fromRow, toRow);
+                session.frameVersion = changes[0];
+            } else {
+                session.frameVersion = encodeFull(frame, snapshot, fromCol, fromCol + width, fromRow, fromRow + height);
+            }
+        } else {
+            session.frameVersion = board.readRows(fromRow, toRow, () -> {
+                long[] changes = samePart ? changesSince(since, (long) width * height) : null;
+                if (changes != null) {
+                    encodeDiff(frame, since, changes, fromCol, toCol, fromRow, toRow);
+                    return changes[0];
+                }
+                return encodeFull(frame, null, fromCol, toCol, fromRow, toRow);
+            });
+        }
+        session.frameBoard = board;
+        session.frameX = fromCol;
+        session.frameY = fromRow;
+        session.frameWidth = width;
+        session.frameHeight = height;
+        return frame.toArray();
+    }
+    
+    /**
+     * A TEXT frame.
+     * @param message of the text protocol, without line separator
+     * @return the frame
+     */
+    public static byte[] text(String message) {
+        byte[] utf8 = message.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[HEADER + utf8.length];
+        frame[0] = TEXT;
+        putInt(frame, 1, utf8.length);
+        System.arraycopy(utf8, 0, frame, HEADER, utf8.length);
+        return frame;
+    }
+    
+    private synchronized long currentVersion() {
+        return version;
+    }
+    
+    /**
+     * Changes of the moves from version since to the current version, if still kept and at most limit.
+     * The changes of a move still being told are left for the next frame.
+     * @return null if not, else the current version followed by each change as row << 32 | col then symbol
+     */
+    private synchronized long[] changesSince(long since, long limit) {
+        if (since < first || since > version) return null;
+        long oldest = Math.max(changes - CAPACITY, 0);
+        long to = changes;
+        while (to > oldest && versions[(int) ((to - 1) % CAPACITY)] >= version) to--;
+        long from = to;
+        while (from > oldest && versions[(int) ((from - 1) % CAPACITY)] >= since) {
+            if (to - from == limit) return null;
+            from--;
+        }
+        // the change before the oldest kept one is lost, it may belong to the moves since
+        if (from == oldest && oldest > 0) return null;
+        long[] changed = new long[2 * (int) (to - from) + 1];
+        changed[0] = version;
+        int at = 1;
+        for (long c = from; c < to; c++) {
+            int k = (int) (c % CAPACITY);
+            changed[at++] = (long) rows[k] << 32 | cols[k];
+            changed[at++] = symbols[k];
+        }
+        return changed;
+    }
+    
+    /** Encode the DIFF payload of the changes inside the part, the last change of each square only **/
+    private static void encodeDiff(Buffer frame, long since, long[] changes, int fromCol, int toCol, int fromRow, int toRow) {
+        frame.putLong(since).putLong(changes[0]);
+        int countAt = frame.size;
+        frame.putInt(0);
+        int count = 0;
+        Set<Long> sent = new HashSet<>();
+        for (int k = changes.length - 2; k > 0; k -= 2) {
+            long square = changes[k];
+            int row = (int) (square >>> 32), col = (int) square;
+            if (row < fromRow || row >= toRow || col < fromCol || col >= toCol) continue;
+            if (!sent.add(square)) continue;
+            frame.putVarint(col).putVarint(row).put((int) changes[k + 1]);
+            count++;
+        }
+        putInt(frame.bytes, countAt, count);
+        frame.type(DIFF);
+    }
+    
+    /**
+     * Encode the FULL payload of the part, from snapshot, or if null from the board, whose stripes of
+     * the rows of the part are then required held.
+     * @return the version shown
+     */
+    private long encodeFull(Buffer frame, Board.Snapshot snapshot, int fromCol, int toCol, int fromRow, int toRow) {
+        long shown = snapshot != null ? snapshot.version() : currentVersion();
+        frame.putLong(shown).putInt(fromCol).putInt(fromRow).putInt(toCol - fromCol).putInt(toRow - fromRow);
+        int symbol = -1;
+        long run = 0;
+        for (int i = fromRow; i < toRow; i++) {
+            for (int j = fromCol; j < toCol; j++) {
+                int next = symbol(snapshot != null ? snapshot.cellAt(i, j) : board.cellAt(i, j));
+                if (next == symbol) {
+                    run++;
+                    continue;
+                }
+                if (run > 0) frame.putRun(symbol, run);
+                symbol = next;
+                run = 1;
+            }
+        }
+        if (run > 0) frame.putRun(symbol, run);
+        frame.type(FULL);
+        return shown;
+    }
+    
+    /** Symbol of a packed cell in frames **/
+    private static int symbol(int cell) {
+        switch (cell & Board.STATE_MASK) {
+        case Board.UNTOUCHED: return UNTOUCHED;
+        case Board.FLAGGED: return FLAGGED;
+        default: return cell & Board.COUNT_MASK;
+        }
+    }
+    
+    private static void putInt(byte[] bytes, int at, int value) {
+        bytes[at] = (byte) (value >>> 24);
+        bytes[at + 1] = (byte) (value >>> 16);
+        bytes[at + 2] = (byte) (value >>> 8);
+        bytes[at + 3] = (byte) value;
+    }
+    
+    /** Growing frame, payload first, the header is filled in last by type(..) **/
+    private static final class Buffer {
+        private byte[] bytes = new byte[64];
+        private int size = HEADER;
+        
+        Buffer put(int b) {
+            if (size == bytes.length) bytes = Arrays.copyOf(bytes, 2 * bytes.length);
+            bytes[size++] = (byte) b;
+            return this;
+        }
+        
+        Buffer putInt(int value) {
+            return put(value >>> 24).put(value >>> 16).put(value >>> 8).put(value);
+        }
+        
+        Buffer putLong(long value) {
+            return putInt((int) (value >>> 32)).putInt((int) value);
+        }
+        
+        Buffer putVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                put((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            return put((int) value);
+        }
+        
+        /** RUN of n > 0 squares of symbol **/
+        Buffer putRun(int symbol, long n) {
+            if (n <= SHORT_RUN) return put(symbol | (int) (n - 1) << 4);
+            return put(symbol | SHORT_RUN << 4).putVarint(n - SHORT_RUN - 1);
+        }
+        
+        /** Fill in the header **/
+        void type(int type) {
+            bytes[0] = (byte) type;
+            BoardFrames.putInt(bytes, 1, size - HEADER);
+        }
+        
+        byte[] toArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+    
+}
@@ -0,0 +1,43 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+/**
+ * Observer of the cells of a Board.
+ */
+public interface BoardListener {
+    
+    /**
+     * Called once a dig, flag or deflag changed a cell, possibly more than once per cell for one dig.
+     * Runs while the board lock of the cell's row is held, so it must be quick and must not call the board.
+     * 
+     * @param row of the cell
+     * @param col of the cell
+     * @param cell new packed value of the cell, see the Board cell constants
+     */
+    void cellChanged(int row, int col, int cell);
+    
+    /**
+     * Same as cellChanged(row, col, cell), also given the cell as it was before the change,
+     * for listeners telling how the cell changed. Calls cellChanged(row, col, cell) unless overridden.
+     * 
+     * @param row of the cell
+     * @param col of the cell
+     * @param oldCell packed value of the cell before the change
+     * @param cell new packed value of the cell
+     */
+    default void cellChanged(int row, int col, int oldCell, int cell) {
+        cellChanged(row, col, cell);
+    }
+    
+    /**
+     * Called once after the cellChanged calls of one move, still holding the board locks of its rows,
+     * so the changes of moves on the same rows reach listeners in the order of the moves.
+     * Once the board was looked at, moves are told one at a time, each right after it published its snapshot,
+     * so counting the moves told since a listener was added under Board.exclusive(..), from the version of the
+     * snapshot then, gives the version of the snapshot of each move. Does nothing unless overridden.
+     */
+    default void moveDone() {
+    }
+    
+}
@@ -0,0 +1,372 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * One partition of a board too large for one server: a process owning a rectangular region of the board,
+ * see PartitionLayout, played through a PartitionGateway. Every partition generates its region from the
+ * same seed as Board.chunked(..) would the whole board, so the partitions together make the same board.
+ * 
+ * Partitions serve a line protocol, each request replied by one line:
+ * <pre>
+ *   REQUEST ::= DIG | REVEAL | FLAG | DEFLAG | UNBOOM | LOOK
+ *   DIG ::= "dig" SPACE X SPACE Y                replied the revealed squares, negative if a boom was dug
+ *   REVEAL ::= "reveal" (SPACE X SPACE Y)+       replied the revealed squares
+ *   FLAG ::= "flag" SPACE X SPACE Y              replied "ok"
+ *   DEFLAG ::= "deflag" SPACE X SPACE Y          replied "ok"
+ *   UNBOOM ::= "unboom" SPACE X SPACE Y          replied "ok"
+ *   LOOK ::= "look" SPACE X SPACE Y SPACE W SPACE H
+ * </pre>
+ * where X, Y are the col and row of a square of the whole board. REVEAL digs squares next to a square
+ * without adjacent booms dug by another partition, continuing its flood fill. UNBOOM tells that the boom
+ * dug at X Y, next to this region, is gone. LOOK is replied the W cols by H rows from X Y, all inside
+ * the region, row after row separated by "/", one char per square: "-" untouched, "F" flagged,
+ * "0".."8" dug with that many adjacent booms. A bad request is replied ERROR and the reason.
+ * 
+ * A flood fill reaching the edge of the region continues as REVEAL requests to the neighbouring partitions,
+ * and digging a boom on the edge sends them UNBOOM first, before the dig is replied. The moves of one
+ * partition are atomic as those of any Board, but a fill spreading over partitions is not: a look at
+ * other partitions while it spreads may show part of it.
+ * 
+ * <br> Usage: java BoardPartition --size SIZE_X,SIZE_Y --grid ROWS,COLS --partitions HOST:PORT,... --index K
+ *                                --seed SEED [--stripe ROWS]
+ * <br> The whole board has SIZE_X rows and SIZE_Y cols, split in a grid of ROWS by COLS partitions whose
+ *      addresses are listed row after row. This process is partition K, from 0, listening on the port of
+ *      its address. Every partition must be started with the same --size, --grid, --partitions and --seed.
+ * <br> --stripe locks the region in stripes of ROWS rows, as for MinesweeperServer.
+ * <br> E.g. four partitions of a 2000*2000 board on localhost, then their gateway:
+ * <pre>
+ *   java BoardPartition --size 2000,2000 --grid 2,2 --partitions localhost:5001,localhost:5002,localhost:5003,localhost:5004 --index 0 --seed 42
+ *   ... the same with --index 1, 2 and 3
+ *   java PartitionGateway --size 2000,2000 --grid 2,2 --partitions localhost:5001,localhost:5002,localhost:5003,localhost:5004
+ * </pre>
+ */
+public class BoardPartition {
+    
+    /** Start of the reply to a bad request **/
+    static final String ERROR = "error ";
+    private static final String OK = "ok";
+    /** Separates the rows of a LOOK reply **/
+    static final char ROW_SEPARATOR = '/';
+    
+    /** Row and col offsets of the 8 neighbours of a square **/
+    private static final int[] DX = {-1, -1, -1, 0, 0, 1, 1, 1};
+    private static final int[] DY = {-1, 0, 1, -1, 1, -1, 0, 1};
+    
+    /** Layout of every partition **/
+    private final PartitionLayout layout;
+    /** Region of this partition in the whole board **/
+    private final int row0;
+    private final int col0;
+    private final int rows;
+    private final int cols;
+    /** Squares of the region, local row and col **/
+    private final Board board;
+    /** Requests to the other partitions **/
+    private final PartitionClient peers;
+    /** Edge squares, as row << 32 | col, the move running on each thread dug without adjacent boom, null if none runs **/
+    private final ThreadLocal<Set<Long>> edges = new ThreadLocal<>();
+    
+    // Abstraction function:
+    //      Represent partition k of layout, square (i, j) of the whole board being square (i - row0, j - col0)
+    //      of board for row0 <= i < row0 + rows and col0 <= j < col0 + cols
+    
+    // Rep invariant:
+    //       row0, col0, rows, cols are the region of this partition in layout
+    //       board has rows rows and cols cols
+    
+    // Rep exposure
+    //      All fields are private and final
+    
+    // Thread safety
+    //      Each connection is served by its own thread, board is thread safe, edges is per thread.
+    //      A move waits for the requests continuing it in other partitions holding no board lock,
+    //      so fills spreading back and forth between partitions never deadlock.
+    
+    /**
+     * Make partition k of layout.
+     * 
+     * @param layout of every partition
+     * @param k index of this partition in layout
+     * @param seed of the whole board, the same for every partition
+     * @param stripeRows number of rows per lock stripe, 0 for a single lock over the region
+     */
+    public BoardPartition(PartitionLayout layout, int k, long seed, int stripeRows) {
+        this.layout = layout;
+        row0 = layout.firstRow(k);
+        col0 = layout.firstCol(k);
+        rows = layout.endRow(k) - row0;
+        cols = layout.endCol(k) - col0;
+        board = new Board(new ChunkedCellStore(rows, cols, row0, col0, layout.getRowNum(), layout.getColNum(), seed),
+                stripeRows);
+        peers = new PartitionClient(layout);
+        board.addListener(new BoardListener() {
+            @Override
+            public void cellChanged(int row, int col, int cell) {
+            }
+            
+            @Override
+            public void cellChanged(int row, int col, int oldCell, int cell) {
+                Set<Long> dug = edges.get();
+                if (dug == null || (oldCell & Board.STATE_MASK) != Board.UNTOUCHED) return;
+                if ((cell & Board.STATE_MASK) != Board.DUG || (cell & Board.COUNT_MASK) != 0) return;
+                if (row > 0 && row < rows - 1 && col > 0 && col < cols - 1) return;
+                dug.add((long) row << 32 | col);
+            }
+        });
+    }
+    
+    /**
+     * Serve the partition protocol on listener, a thread per connection. Never returns unless listener breaks.
+     * @param listener bound server socket
+     * @throws IOException if listener is broken
+     */
+    public void serve(ServerSocket listener) throws IOException {
+        while (true) {
+            Socket socket = listener.accept();
+            socket.setTcpNoDelay(true);
+            new Thread(() -> handleConnection(socket)).start();
+        }
+    }
+    
+    /** Reply to the requests of a connection until it is closed **/
+    private void handleConnection(Socket socket) {
+        try (Socket connection = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = connection.getOutputStream();
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                String reply;
+                try {
+                    reply = handleRequest(line);
+                } catch (IOException | RuntimeException e) {
+                    reply = ERROR + e.getMessage();
+                }
+                out.write((reply + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch (IOException ioe) {
+            // the connection broke, its client finds out
+        }
+    }
+    
+    /**
+     * Handle a request of the partition protocol.
+     * @param line the request
+     * @return the reply
+     * @throws IOException if another partition the request continues to fails
+     * @throws IllegalArgumentException if the request is not valid
+     */
+    String handleRequest(String line) throws IOException {
+        String[] words = line.split(" ");
+        int[] args = new int[words.length - 1];
+        for (int k = 0; k < args.length; k++) {
+            args[k] = Integer.parseInt(words[k + 1]);
+        }
+        int arity = words[0].equals("look") ? 4 : 2;
+        boolean batch = words[0].equals("reveal");
+        if (batch ? args.length == 0 || args.length % 2 != 0 : args.length != arity)
+            throw new IllegalArgumentException("wrong number of arguments: " + line);
+        if (!words[0].equals("unboom")) {
+            for (int k = 0; k < args.length; k += arity) {
+                owned(args[k], args[k + 1]);
+            }
+        }
+        switch (words[0]) {
+        case "dig":
+        case "reveal":
+            return Long.toString(dig(args));
+        case "flag":
+            board.flag(args[0] - col0, args[1] - row0);
+            return OK;
+        case "deflag":
+            board.deflag(args[0] - col0, args[1] - row0);
+            return OK;
+        case "unboom":
+            for (int k = 0; k < DX.length; k++) {
+                board.removeAdjacentBoom(args[0] + DY[k] - col0, args[1] + DX[k] - row0);
+            }
+            return OK;
+        case "look":
+            if (args[2] <= 0 || args[3] <= 0) throw new IllegalArgumentException("empty look: " + line);
+            owned(args[0] + args[2] - 1, args[1] + args[3] - 1);
+            return look(args[0] - col0, args[1] - row0, args[2], args[3]);
+        default:
+            throw new IllegalArgumentException("unknown request: " + line);
+        }
+    }
+    
+    /** @throws IllegalArgumentException if the square at x col y row is not in the region **/
+    private void owned(int x, int y) {
+        if (y < row0 || y >= row0 + rows || x < col0 || x >= col0 + cols)
+            throw new IllegalArgumentException("square " + x + "," + y + " is not in this partition");
+    }
+    
+    /**
+     * Dig squares in turn, then continue their flood fills into the neighbouring partitions.
+     * @param squares x col y row pairs of the squares, in the region
+     * @return number of squares revealed in every partition, negative if a boom was dug
+     * @throws IOException if a neighbouring partition fails
+     */
+    private long dig(int[] squares) throws IOException {
+        Set<Long> dug = new HashSet<>();
+        long revealed = 0;
+        boolean boom = false;
+        edges.set(dug);
+        try {
+            for (int k = 0; k < squares.length; k += 2) {
+                int result = board.digAndReveal(squares[k] - col0, squares[k + 1] - row0);
+                if (result < 0) {
+                    boom = true;
+                    // before the fill reaches them, so they reveal their squares with the right counts
+                    unboom(squares[k], squares[k + 1]);
+                }
+                revealed += Math.abs(result);
+            }
+        } finally {
+            edges.remove();
+        }
+        revealed += spread(dug);
+        return boom ? -revealed : revealed;
+    }
+    
+    /** Tell the partitions next to the square at x col y row that its boom was removed **/
+    private void unboom(int x, int y) throws IOException {
+        Set<Integer> told = new HashSet<>();
+        for (int k = 0; k < DX.length; k++) {
+            int i = y + DX[k], j = x + DY[k];
+            if (!outside(i, j)) continue;
+            int owner = layout.owner(i, j);
+            if (told.add(owner)) peers.call(owner, "unboom " + x + " " + y);
+        }
+    }
+    
+    /**
+     * Continue flood fills past the edge of the region.
+     * @param dug edge squares dug without adjacent booms, local row << 32 | col
+     * @return number of squares revealed by the neighbouring partitions
+     * @throws IOException if a neighbouring partition fails
+     */
+    private long spread(Set<Long> dug) throws IOException {
+        if (dug.isEmpty()) return 0;
+        Map<Integer, StringBuilder> requests = new TreeMap<>();
+        Set<Long> sent = new HashSet<>();
+        for (long square : dug) {
+            int row = row0 + (int) (square >>> 32), col = col0 + (int) square;
+            for (int k = 0; k < DX.length; k++) {
+                int i = row + DX[k], j = col + DY[k];
+                if (!outside(i, j) || !sent.add((long) i << 32 | j)) continue;
+                requests.computeIfAbsent(layout.owner(i, j), owner -> new StringBuilder("reveal"))
+                        .append(' ').append(j).append(' ').append(i);
+            }
+        }
+        long revealed = 0;
+        for (Map.Entry<Integer, StringBuilder> request : requests.entrySet()) {
+            revealed += Long.parseLong(peers.call(request.getKey(), request.getValue().toString()));
+        }
+        return revealed;
+    }
+    
+    /** @return true if the square at row i col j is on the board, outside the region **/
+    private boolean outside(int i, int j) {
+        if (i < 0 || j < 0 || i >= layout.getRowNum() || j >= layout.getColNum()) return false;
+        return i < row0 || i >= row0 + rows || j < col0 || j >= col0 + cols;
+    }
+    
+    /** LOOK reply of w cols by h rows from x col y row of the region, all inside it **/
+    private String look(int x, int y, int w, int h) {
+        return board.readRows(y, y + h, () -> {
+            StringBuilder s = new StringBuilder((w + 1) * h);
+            for (int i = y; i < y + h; i++) {
+                if (i > y) s.append(ROW_SEPARATOR);
+                for (int j = x; j < x + w; j++) {
+                    int cell = board.cellAt(i, j);
+                    switch (cell & Board.STATE_MASK) {
+                    case Board.UNTOUCHED: s.append('-'); break;
+                    case Board.FLAGGED: s.append('F'); break;
+                    default: s.append((char) ('0' + (cell & Board.COUNT_MASK)));
+                    }
+                }
+            }
+            return s.toString();
+        });
+    }
+    
+    /**
+     * Start a partition, see the usage above.
+     * @param args arguments as described
+     */
+    public static void main(String[] args) {
+        int sizeX = -1, sizeY = -1, gridRows = -1, gridCols = -1, index = -1, stripeRows = 0;
+        String partitions = null;
+        Long seed = null;
+        Queue<String> arguments = new LinkedList<>(Arrays.asList(args));
+        PartitionLayout layout;
+        try {
+            while ( ! arguments.isEmpty()) {
+                String flag = arguments.remove();
+                try {
+                    if (flag.equals("--size")) {
+                        String[] sizes = arguments.remove().split(",");
+                        sizeX = Integer.parseInt(sizes[0]);
+                        sizeY = Integer.parseInt(sizes[1]);
+                    } else if (flag.equals("--grid")) {
+                        String[] grid = arguments.remove().split(",");
+                        gridRows = Integer.parseInt(grid[0]);
+                        gridCols = Integer.parseInt(grid[1]);
+                    } else if (flag.equals("--partitions")) {
+                        partitions = arguments.remove();
+                    } else if (flag.equals("--index")) {
+                        index = Integer.parseInt(arguments.remove());
+                    } else if (flag.equals("--seed")) {
+                        seed = Long.parseLong(arguments.remove());
+                    } else if (flag.equals("--stripe")) {
+                        stripeRows = Integer.parseInt(arguments.remove());
+                        if (stripeRows <= 0) {
+                            throw new IllegalArgumentException("stripe " + stripeRows + " must be positive");
+                        }
+                    } else {
+                        throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
+                    }
+                } catch (NoSuchElementException | ArrayIndexOutOfBoundsException e) {
+                    throw new IllegalArgumentException("missing argument for " + flag);
+                } catch (NumberFormatException nfe) {
+                    throw new IllegalArgumentException("unable to parse number for " + flag);
+                }
+            }
+            if (partitions == null || seed == null) throw new IllegalArgumentException("--partitions and --seed are required");
+            layout = new PartitionLayout(sizeX, sizeY, gridRows, gridCols, partitions);
+            if (index < 0 || index >= layout.size()) throw new IllegalArgumentException("index " + index + " out of range");
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.err.println("usage: BoardPartition --size SIZE_X,SIZE_Y --grid ROWS,COLS --partitions HOST:PORT,..."
+                    + " --index K --seed SEED [--stripe ROWS]");
+            return;
+        }
+        
+        BoardPartition partition = new BoardPartition(layout, index, seed, stripeRows);
+        try (ServerSocket listener = new ServerSocket(layout.address(index).getPort())) {
+            System.out.println("partition " + index + ": " + partition.cols + " columns by " + partition.rows
+                    + " rows from " + partition.col0 + " " + partition.row0);
+            partition.serve(listener);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+    
+}
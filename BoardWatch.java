@@ -0,0 +1,134 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes board changes to watching sessions.
+ * Changes are collected as they happen and sent once per tick as a single coalesced message:
+ * <pre>
+ *   UPDATE ::= "changed" (SPACE X "," Y "," CELL)+
+ *   CELL ::= "-" | "F" | [0-8]
+ * </pre>
+ * where X is the col and Y the row of a changed square, CELL is "-" for untouched, "F" for flagged
+ * and the number of adjacent booms for dug. A square changed several times in a tick is sent once.
+ * The watch only listens to the board and ticks while somebody watches, so an unwatched board's moves
+ * log and tell nothing.
+ */
+public class BoardWatch implements BoardListener {
+    
+    /** Time between two updates **/
+    static final long TICK_MILLIS = 100;
+    /** Thread sending the updates of every watch **/
+    private static final ScheduledExecutorService TICKER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "board-watch");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    /** The watched board **/
+    private final Board board;
+    /** Scheduled ticks of this watch, null while nobody watches **/
+    private ScheduledFuture<?> ticks;
+    /** Sessions receiving updates **/
+    private final Set<Session> watchers = ConcurrentHashMap.newKeySet();
+    /** Changed cells since the last tick, as row, col and packed value triples in change order **/
+    private int[] changes = new int[63];
+    private int changesSize = 0;
+    
+    // Abstraction function: 
+    //      Represent the watchers of a board and the changes not yet sent to them
+    
+    // Rep invariant:
+    //       0 <= changesSize <= changes.length, changesSize is a multiple of 3
+    
+    // Thread safety
+    //      changes, changesSize and ticks are guarded by this, watchers is a concurrent set changed under this
+    
+    /**
+     * Make a BoardWatch on board, listening to it once somebody watches.
+     * @param board to watch
+     */
+    public BoardWatch(Board board) {
+        this.board = board;
+    }
+    
+    /** Send updates to session from the next tick on **/
+    public synchronized void watch(Session session) {
+        if (!watchers.add(session) || watchers.size() > 1) return;
+        board.addListener(this);
+        ticks = TICKER.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    public synchronized void unwatch(Session session) {
+        if (watchers.remove(session) && watchers.isEmpty()) stop();
+    }
+    
+    /** Stop watching the board, for good **/
+    public synchronized void close() {
+        watchers.clear();
+        stop();
+    }
+    
+    /** Stop listening to the board and ticking, dropping the changes not yet sent **/
+    private void stop() {
+        board.removeListener(this);
+        if (ticks != null) ticks.cancel(false);
+        ticks = null;
+        changesSize = 0;
+    }
+    
+    @Override
+    public void cellChanged(int row, int col, int cell) {
+        if (watchers.isEmpty()) return;
+        synchronized (this) {
+            if (changesSize + 3 > changes.length) changes = Arrays.copyOf(changes, 2 * changes.length);
+            changes[changesSize++] = row;
+            changes[changesSize++] = col;
+            changes[changesSize++] = cell;
+        }
+    }
+    
+    /**
+     * Send one message with every change since the last tick, the latest value of each cell only.
+     */
+    private void tick() {
+        int[] pending;
+        int size;
+        synchronized (this) {
+            if (changesSize == 0) return;
+            pending = Arrays.copyOf(changes, changesSize);
+            size = changesSize;
+            changesSize = 0;
+        }
+        StringBuilder update = new StringBuilder("changed");
+        Set<Long> sent = new HashSet<>();
+        for (int k = size - 3; k >= 0; k -= 3) {
+            int row = pending[k], col = pending[k + 1];
+            if (!sent.add(((long) row << 32) | col)) continue;
+            update.append(' ').append(col).append(',').append(row).append(',').append(symbol(pending[k + 2]));
+        }
+        String message = update.toString();
+        for (Session session : watchers) {
+            session.send(message);
+        }
+    }
+    
+    /** Symbol of a packed cell in updates **/
+    private static char symbol(int cell) {
+        switch (cell & Board.STATE_MASK) {
+        case Board.UNTOUCHED: return '-';
+        case Board.FLAGGED: return 'F';
+        default: return (char) ('0' + (cell & Board.COUNT_MASK));
+        }
+    }
+    
+}
@@ -0,0 +1,32 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+/**
+ * Storage of the packed cells of a Board, see the Board cell constants.
+ */
+interface CellStore {
+    
+    /** Number of rows **/
+    int rows();
+    
+    /** Number of cols **/
+    int cols();
+    
+    /**
+     * @param row requires 0 <= row < rows()
+     * @param col requires 0 <= col < cols()
+     * @return packed cell at row, col
+     */
+    int get(int row, int col);
+    
+    /**
+     * Replace the packed cell at row, col.
+     * Concurrent calls on different rows are safe, calls on one row need outside locking.
+     * @param row requires 0 <= row < rows()
+     * @param col requires 0 <= col < cols()
+     * @param cell packed cell, only its low 8 bits are kept
+     */
+    void set(int row, int col, int cell);
+    
+}
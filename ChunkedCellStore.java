@@ -0,0 +1,172 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cells of a random board stored in CHUNK*CHUNK chunks, each created the first time one of its cells changes.
+ * Whether a cell holds a boom is a hash of the seed and the cell's position, so reading an untouched
+ * part of the board needs no storage at all, and the same seed always gives the same board.
+ * The store may also hold a rectangular region of a larger board of the same seed, see BoardPartition:
+ * its cells are then those of the region, counting the booms next to the region too.
+ */
+class ChunkedCellStore implements CellStore {
+    
+    /** Log2 of the side of a chunk **/
+    private static final int CHUNK_BITS = 6;
+    private static final int CHUNK = 1 << CHUNK_BITS;
+    /** Booms are the cells whose 24 bits hash is below this **/
+    private static final long BOOM_THRESHOLD = (long) (Board.BOOM_PROBABILITY * (1 << 24));
+    
+    private final int n;
+    private final int m;
+    /** Position of the region in the whole board, and size of the whole board **/
+    private final int row0;
+    private final int col0;
+    private final int totalRows;
+    private final int totalCols;
+    private final long seed;
+    /** Created chunks by key(row, col) **/
+    private final ConcurrentMap<Long, byte[]> chunks = new ConcurrentHashMap<>();
+    /** Last chunk used, saves a map lookup when cells are visited in neighbour order **/
+    private volatile Last last = new Last(-1, null);
+    
+    // Abstraction function: 
+    //      Represent n*m cells, cell (i, j) is chunks.get(key(i, j))[offset(i, j)] if that chunk exists,
+    //      else it is initialCell(i, j): untouched, holding a boom iff hasBoom(seed, row0 + i, col0 + j)
+    
+    // Rep invariant:
+    //       0 <= row0, row0 + n <= totalRows, 0 <= col0, col0 + m <= totalCols
+    //       every chunk has CHUNK*CHUNK cells, each initialized as initialCell(..)
+    //       last.chunk == null or last.chunk == chunks.get(last.key)
+    
+    // Rep exposure
+    //      All fields are private
+    
+    // Thread safety
+    //      chunks is a concurrent map, created at most once per key,
+    //      last is an immutable pair replaced atomically
+    
+    ChunkedCellStore(int n, int m, long seed) {
+        this(n, m, 0, 0, n, m, seed);
+    }
+    
+    /**
+     * Cells of the n*m region from row row0 and col col0 of the totalRows*totalCols board of seed.
+     * @throws IllegalArgumentException if the region is empty or not inside the board
+     */
+    ChunkedCellStore(int n, int m, int row0, int col0, int totalRows, int totalCols, long seed) {
+        if (n <= 0 || m <= 0) throw new IllegalArgumentException("unsupported board size " + m + "x" + n);
+        if (row0 < 0 || col0 < 0 || (long) row0 + n > totalRows || (long) col0 + m > totalCols) 
+            throw new IllegalArgumentException("region " + m + "x" + n + " at " + col0 + "," + row0
+                    + " outside the board " + totalCols + "x" + totalRows);
+        this.n = n;
+        this.m = m;
+        this.row0 = row0;
+        this.col0 = col0;
+        this.totalRows = totalRows;
+        this.totalCols = totalCols;
+        this.seed = seed;
+    }
+    
+    @Override
+    public int rows() {
+        return n;
+    }
+    
+    @Override
+    public int cols() {
+        return m;
+    }
+    
+    @Override
+    public int get(int row, int col) {
+        byte[] chunk = find(key(row, col));
+        if (chunk == null) return initialCell(row, col);
+        return chunk[offset(row, col)];
+    }
+    
+    @Override
+    public void set(int row, int col, int cell) {
+        long key = key(row, col);
+        byte[] chunk = find(key);
+        if (chunk == null) {
+            chunk = chunks.computeIfAbsent(key, k -> newChunk(row >>> CHUNK_BITS << CHUNK_BITS, col >>> CHUNK_BITS << CHUNK_BITS));
+            last = new Last(key, chunk);
+        }
+        chunk[offset(row, col)] = (byte) cell;
+    }
+    
+    /** Number of chunks created so far **/
+    int chunkCount() {
+        return chunks.size();
+    }
+    
+    /** The chunk of key, null if not created yet **/
+    private byte[] find(long key) {
+        Last cached = last;
+        if (cached.key == key) return cached.chunk;
+        byte[] chunk = chunks.get(key);
+        if (chunk != null) last = new Last(key, chunk);
+        return chunk;
+    }
+    
+    /** Untouched cells of the chunk whose first cell is at row, col **/
+    private byte[] newChunk(int row, int col) {
+        byte[] chunk = new byte[CHUNK * CHUNK];
+        for (int i = 0; i < CHUNK && row + i < n; i++) {
+            for (int j = 0; j < CHUNK && col + j < m; j++) {
+                chunk[i * CHUNK + j] = (byte) initialCell(row + i, col + j);
+            }
+        }
+        return chunk;
+    }
+    
+    private static long key(int row, int col) {
+        return ((long) (row >>> CHUNK_BITS) << 32) | (col >>> CHUNK_BITS);
+    }
+    
+    private static int offset(int row, int col) {
+        return (row & (CHUNK - 1)) << CHUNK_BITS | (col & (CHUNK - 1));
+    }
+    
+    /** Untouched cell at row, col, with its boom and its count of adjacent booms, inside the region or not **/
+    private int initialCell(int row, int col) {
+        row += row0;
+        col += col0;
+        int count = 0;
+        for (int i = Math.max(row - 1, 0); i <= row + 1 && i < totalRows; i++) {
+            for (int j = Math.max(col - 1, 0); j <= col + 1 && j < totalCols; j++) {
+                if ((i != row || j != col) && hasBoom(seed, i, j)) count++;
+            }
+        }
+        return (hasBoom(seed, row, col) ? Board.BOOM : Board.UNTOUCHED) | count;
+    }
+    
+    /** Whether the board of seed starts with a boom at row, col **/
+    static boolean hasBoom(long seed, int row, int col) {
+        return (mix(seed ^ mix(((long) row << 32) | col)) >>> 40) < BOOM_THRESHOLD;
+    }
+    
+    /** SplitMix64 finalizer, spreads every input bit over the whole result **/
+    static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+    
+    /** A chunk with its key **/
+    private static final class Last {
+        final long key;
+        final byte[] chunk;
+        
+        Last(long key, byte[] chunk) {
+            this.key = key;
+            this.chunk = chunk;
+        }
+    }
+    
+}
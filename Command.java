@@ -0,0 +1,160 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+/**
+ * A mutable, reusable decoded client command.
+ * parse() decodes a line straight from its chars, with no regex and no allocation:
+ * <pre>
+ *   COMMAND ::= KEYWORD (SPACE INT)*
+ *   INT ::= "-"? [0-9]+
+ * </pre>
+ * where the keyword must be one of Op and the number of INT one its op accepts.
+ */
+public class Command {
+    
+    /** Commands of the protocol, with the numbers of arguments each one accepts **/
+    enum Op {
+        LOOK("look", 0, 4),
+        HELP("help", 0),
+        BYE("bye", 0),
+        HELLO("hello", 0, 1),
+        WATCH("watch", 0),
+        UNWATCH("unwatch", 0),
+        SPECTATE("spectate", 0, 1),
+        UNSPECTATE("unspectate", 0),
+        GAMES("games", 0),
+        SNAPSHOT("snapshot", 0),
+        STATS("stats", 0),
+        STATUS("status", 0),
+        HINT("hint", 0, 4),
+        BIND("bind", 0),
+        UNBIND("unbind", 0),
+        JOIN("join", 1),
+        NEW("new", 2),
+        DIG("dig", 2),
+        FLAG("flag", 2),
+        DEFLAG("deflag", 2);
+        
+        final String keyword;
+        /** Bit k is set if the op accepts k arguments **/
+        final int arities;
+        
+        Op(String keyword, int... arities) {
+            this.keyword = keyword;
+            int bits = 0;
+            for (int arity : arities) bits |= 1 << arity;
+            this.arities = bits;
+        }
+    }
+    
+    /** Most arguments of any op **/
+    static final int MAX_ARGS = 4;
+    /** Op.values(), without a copy per call **/
+    private static final Op[] OPS = Op.values();
+    
+    private Op op;
+    private final int[] args = new int[MAX_ARGS];
+    private int argc;
+    
+    // Abstraction function: 
+    //      Represent the last successfully parsed command, op with arguments args[0..argc-1]
+    
+    // Rep invariant:
+    //       op == null or bit argc of op.arities is set
+    
+    // Rep exposure
+    //      All fields are private
+    
+    // Thread safety
+    //      Not thread safe, each connection parses with its own Command
+    
+    /**
+     * Decode input into this command.
+     * @param input a line from a client
+     * @return true if input is a valid command, else false and this command is unchanged
+     */
+    public boolean parse(CharSequence input) {
+        return parse(input, 0, input.length());
+    }
+    
+    /**
+     * Decode input[from..to) into this command, e.g. one move of a batch line.
+     * @param input a line from a client
+     * @param from index of the first char of the command
+     * @param to index after its last char, requires 0 <= from <= to <= input.length()
+     * @return true if input[from..to) is a valid command, else false and this command is unchanged
+     */
+    public boolean parse(CharSequence input, int from, int to) {
+        int end = from;
+        while (end < to && input.charAt(end) != ' ') end++;
+        Op parsed = keyword(input, from, end);
+        if (parsed == null) return false;
+        int count = 0;
+        int pos = end;
+        // parse into a scratch area first so a bad line leaves the command unchanged
+        long a0 = 0, a1 = 0, a2 = 0, a3 = 0;
+        while (pos < to) {
+            if (input.charAt(pos) != ' ' || count == MAX_ARGS) return false;
+            pos++;
+            boolean negative = pos < to && input.charAt(pos) == '-';
+            if (negative) pos++;
+            int start = pos;
+            long value = 0;
+            while (pos < to) {
+                char c = input.charAt(pos);
+                if (c < '0' || c > '9') break;
+                value = value * 10 + (c - '0');
+                if (value > (long) Integer.MAX_VALUE + 1) return false;
+                pos++;
+            }
+            if (pos == start) return false;
+            if (negative) value = -value;
+            if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) return false;
+            switch (count++) {
+            case 0: a0 = value; break;
+            case 1: a1 = value; break;
+            case 2: a2 = value; break;
+            default: a3 = value; break;
+            }
+        }
+        if ((parsed.arities & (1 << count)) == 0) return false;
+        op = parsed;
+        argc = count;
+        args[0] = (int) a0;
+        args[1] = (int) a1;
+        args[2] = (int) a2;
+        args[3] = (int) a3;
+        return true;
+    }
+    
+    /** Op whose keyword is exactly input[from..end), null if none **/
+    private static Op keyword(CharSequence input, int from, int end) {
+        for (Op candidate : OPS) {
+            String keyword = candidate.keyword;
+            if (keyword.length() != end - from) continue;
+            int i = 0;
+            while (i < end - from && keyword.charAt(i) == input.charAt(from + i)) i++;
+            if (i == end - from) return candidate;
+        }
+        return null;
+    }
+    
+    /** Getters */
+    public Op op() {
+        return op;
+    }
+    
+    public int argc() {
+        return argc;
+    }
+    
+    /**
+     * @param k index of an argument, requires 0 <= k < argc()
+     * @return the k-th argument
+     */
+    public int arg(int k) {
+        return args[k];
+    }
+    
+}
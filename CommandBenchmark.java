@@ -0,0 +1,40 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+/**
+ * Compares the Command decoder with the regex, split and parseInt decoding it replaced,
+ * on a typical mix of client lines.
+ * 
+ * <br> Usage: java CommandBenchmark
+ */
+public class CommandBenchmark {
+    
+    /** Lines decoded in turn, mostly moves **/
+    private static final String[] LINES = {
+        "dig 12 34", "flag 3 4", "look", "dig 0 0", "deflag 100 200", "flag -1 7", "help", "dig x y",
+    };
+    
+    private static final String REGEX = "(look)|(help)|(bye)|(hello)|(watch)|(unwatch)|"
+            + "(dig -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|(deflag -?\\d+ -?\\d+)";
+    
+    public static void main(String[] args) {
+        Command command = new Command();
+        int[] next = {0};
+        double legacy = Bench.run("regex + split + parseInt", () -> legacyDecode(LINES[next[0]++ & 7]));
+        double decoder = Bench.run("Command.parse", () -> {
+            if (!command.parse(LINES[next[0]++ & 7])) return -1;
+            return command.argc() == 2 ? command.arg(0) + command.arg(1) : command.op().ordinal();
+        });
+        System.out.println(String.format("speedup %.1fx", decoder / legacy));
+    }
+    
+    /** Decoding as handleRequest used to do it **/
+    private static int legacyDecode(String input) {
+        if (!input.matches(REGEX)) return -1;
+        String[] tokens = input.split(" ");
+        if (tokens.length == 1) return tokens[0].length();
+        return Integer.parseInt(tokens[1]) + Integer.parseInt(tokens[2]);
+    }
+    
+}
@@ -0,0 +1,74 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Strategy accepting client connections and moving their bytes,
+ * calling back the MinesweeperServer for each connection, line and disconnection.
+ */
+public interface ConnectionEngine {
+    
+    /** Names accepted by forName **/
+    String THREAD = "thread";
+    String VIRTUAL = "virtual";
+    String NIO = "nio";
+    
+    /**
+     * Accept and serve connections on listener until it is closed.
+     * 
+     * @param listener bound server channel, in blocking mode
+     * @param server called back on connection events
+     * @throws IOException if listener is broken
+     *                     (IOExceptions from individual clients do *not* terminate serve())
+     */
+    void serve(ServerSocketChannel listener, MinesweeperServer server) throws IOException;
+    
+    /**
+     * Find an engine by name:
+     * "thread" starts a platform thread per connection reading it with blocking I/O, and writes from a shared
+     * pool of platform threads, of which a connection only holds one while its client is slow to read,
+     * "virtual" does the same with virtual threads (needs Java 21 or later),
+     * "nio" serves every connection from a single selector thread with non-blocking I/O.
+     * 
+     * @param name of the engine
+     * @return the engine
+     * @throws IllegalArgumentException if name is unknown or not supported by this JVM
+     */
+    static ConnectionEngine forName(String name) {
+        switch (name) {
+        case THREAD:
+            return new BlockingConnectionEngine(task -> new Thread(task).start(), Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "connection-writer");
+                thread.setDaemon(true);
+                return thread;
+            }));
+        case VIRTUAL:
+            Executor threads = virtualThreads();
+            return new BlockingConnectionEngine(threads, threads);
+        case NIO:
+            return new NioConnectionEngine();
+        default:
+            throw new IllegalArgumentException("unknown engine: \"" + name + "\"");
+        }
+    }
+    
+    /**
+     * Executor starting a virtual thread per task.
+     * Looked up reflectively so the server still compiles and runs on JVMs without virtual threads.
+     */
+    static Executor virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException roe) {
+            throw new IllegalArgumentException("virtual threads need Java 21 or later, running "
+                    + System.getProperty("java.version"));
+        }
+    }
+    
+}
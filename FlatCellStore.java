@@ -0,0 +1,188 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Cells of a board in one flat array, one byte per cell, indexed by row * cols + col.
+ */
+class FlatCellStore implements CellStore {
+    
+    /** Cells handled by one fork/join task **/
+    private static final int TASK_CELLS = 1 << 16;
+    /** A cell holds a boom when a 16 bits random sample is below this **/
+    private static final int BOOM_THRESHOLD = (int) (Board.BOOM_PROBABILITY * (1 << 16));
+    /** Position of the BOOM bit **/
+    private static final int BOOM_SHIFT = Integer.numberOfTrailingZeros(Board.BOOM);
+    
+    private final byte[] cells;
+    private final int n;
+    private final int m;
+    
+    // Abstraction function: 
+    //      Represent the n*m cells, cell (i, j) is cells[i * m + j]
+    
+    // Rep invariant:
+    //       cells.length == n * m, n > 0, m > 0
+    
+    // Rep exposure
+    //      All fields are private and final
+    
+    /** Untouched n*m cells without booms **/
+    FlatCellStore(int n, int m) {
+        this.n = n;
+        this.m = m;
+        cells = new byte[checkedArea(n, m)];
+    }
+    
+    /**
+     * Number of cells of a n*m board
+     * @throws IllegalArgumentException if the board does not fit in one array
+     */
+    private static int checkedArea(int n, int m) {
+        long area = (long) n * m;
+        if (n <= 0 || m <= 0 || area > Integer.MAX_VALUE) 
+            throw new IllegalArgumentException("unsupported board size " + m + "x" + n);
+        return (int) area;
+    }
+    
+    /**
+     * Untouched n*m cells with Board.BOOM_PROBABILITY booms and their counts.
+     * Booms are drawn in parallel row blocks, each with its own generator split from one seeded with seed,
+     * always split the same way, so the same seed gives the same board whatever the number of threads.
+     */
+    static FlatCellStore random(int n, int m, long seed) {
+        FlatCellStore store = new FlatCellStore(n, m);
+        ForkJoinPool.commonPool().invoke(store.new Generate(0, n, new SplittableRandom(seed)));
+        store.countBooms();
+        return store;
+    }
+    
+    /**
+     * Set the COUNT bits of every cell to its number of adjacent booms, in parallel row blocks.
+     */
+    void countBooms() {
+        ForkJoinPool.commonPool().invoke(new Count(0, n));
+    }
+    
+    /** Rows per fork/join task, so a task handles about TASK_CELLS cells **/
+    private int taskRows() {
+        return Math.max(1, TASK_CELLS / m);
+    }
+    
+    /** Draw the booms of rows lo..hi-1 **/
+    private final class Generate extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int lo;
+        private final int hi;
+        private final SplittableRandom random;
+        
+        Generate(int lo, int hi, SplittableRandom random) {
+            this.lo = lo;
+            this.hi = hi;
+            this.random = random;
+        }
+        
+        @Override
+        protected void compute() {
+            if (hi - lo > taskRows()) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Generate(lo, mid, random.split()), new Generate(mid, hi, random));
+                return;
+            }
+            // four 16 bits samples per random long, each turned into BOOM or 0 without a branch
+            int k = lo * m;
+            int end = hi * m;
+            for (; k + 4 <= end; k += 4) {
+                long bits = random.nextLong();
+                cells[k] = boomIfBelow((int) bits & 0xFFFF);
+                cells[k + 1] = boomIfBelow((int) (bits >>> 16) & 0xFFFF);
+                cells[k + 2] = boomIfBelow((int) (bits >>> 32) & 0xFFFF);
+                cells[k + 3] = boomIfBelow((int) (bits >>> 48));
+            }
+            for (; k < end; k++) {
+                cells[k] = boomIfBelow(random.nextInt() & 0xFFFF);
+            }
+        }
+    }
+    
+    /** BOOM if a 16 bits sample is below BOOM_THRESHOLD, else 0 **/
+    private static byte boomIfBelow(int sample) {
+        return (byte) (((sample - BOOM_THRESHOLD) >> 31) & Board.BOOM);
+    }
+    
+    /** Count the booms around each cell of rows lo..hi-1 **/
+    private final class Count extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int lo;
+        private final int hi;
+        
+        Count(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+        
+        @Override
+        protected void compute() {
+            if (hi - lo > taskRows()) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Count(lo, mid), new Count(mid, hi));
+                return;
+            }
+            // booms[j + 1] is the number of booms in col j of rows i-1..i+1
+            int[] booms = new int[m + 2];
+            int boom = Board.BOOM;
+            for (int i = lo; i < hi; i++) {
+                int row = i * m;
+                int up = row - m;
+                int down = row + m;
+                if (i > 0 && i < n - 1) {
+                    for (int j = 0; j < m; j++) {
+                        booms[j + 1] = ((cells[up + j] & boom) + (cells[row + j] & boom) + (cells[down + j] & boom)) >> BOOM_SHIFT;
+                    }
+                } else {
+                    for (int j = 0; j < m; j++) {
+                        int column = cells[row + j] & boom;
+                        if (i > 0) column += cells[up + j] & boom;
+                        if (i < n - 1) column += cells[down + j] & boom;
+                        booms[j + 1] = column >> BOOM_SHIFT;
+                    }
+                }
+                for (int j = 0; j < m; j++) {
+                    int cell = cells[row + j];
+                    int count = booms[j] + booms[j + 1] + booms[j + 2] - ((cell & boom) >> BOOM_SHIFT);
+                    cells[row + j] = (byte) ((cell & ~Board.COUNT_MASK) | count);
+                }
+            }
+        }
+    }
+    
+    /** The cells array itself, for bulk loading and copying **/
+    byte[] cells() {
+        return cells;
+    }
+    
+    @Override
+    public int rows() {
+        return n;
+    }
+    
+    @Override
+    public int cols() {
+        return m;
+    }
+    
+    @Override
+    public int get(int row, int col) {
+        return cells[row * m + col];
+    }
+    
+    @Override
+    public void set(int row, int col, int cell) {
+        cells[row * m + col] = (byte) cell;
+    }
+    
+}
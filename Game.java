@@ -0,0 +1,186 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * One hosted game: a board, its players, watchers and spectators, and the shard executor its moves run on.
+ * Every player is told when the game is won.
+ */
+public class Game {
+    
+    private final int id;
+    private final Board board;
+    private final BoardWatch watch;
+    /** Changes for the frames of binary clients, null until one asks for a frame **/
+    private BoardFrames frames;
+    /** Moves for spectators, null until one spectates **/
+    private SpectatorFeed feed;
+    /** Hints of the board, null until one is asked **/
+    private HintSolver hints;
+    /** Sessions of the players **/
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    /** Runs every command of this game's players **/
+    private final Executor shard;
+    /** Time of the last command, in System.currentTimeMillis() **/
+    private volatile long lastActive = System.currentTimeMillis();
+    /** True once removed from its registry, then nobody may join **/
+    private boolean evicted = false;
+    
+    // Abstraction function: 
+    //      Represent the game id played on board by board.getPlayerCount() players
+    
+    // Rep invariant:
+    //       board, watch, shard != null
+    //       evicted implies board.getPlayerCount() == 0 and nobody spectates
+    //       sessions.size() <= board.getPlayerCount(), players joined without a session are counted only
+    
+    // Rep exposure
+    //      board and watch are mutable and shared with the players, they are thread safe
+    
+    // Thread safety
+    //      evicted, frames, feed, hints and joining or leaving players and spectators are guarded by this,
+    //      lastActive is volatile
+    
+    /**
+     * Make a Game.
+     * @param id of the game
+     * @param board of the game
+     * @param shard running the game's commands
+     */
+    public Game(int id, Board board, Executor shard) {
+        this.id = id;
+        this.board = board;
+        this.watch = new BoardWatch(board);
+        this.shard = shard;
+        board.onWon(this::announceWin);
+    }
+    
+    /** Getters */
+    public int getId() {
+        return id;
+    }
+    
+    public Board getBoard() {
+        return board;
+    }
+    
+    public BoardWatch getWatch() {
+        return watch;
+    }
+    
+    public Executor getShard() {
+        return shard;
+    }
+    
+    /**
+     * Frames of this game's board for binary clients, made on first use
+     * so that games without binary clients do not record their changes.
+     */
+    public synchronized BoardFrames getFrames() {
+        if (frames == null) frames = new BoardFrames(board);
+        return frames;
+    }
+    
+    /**
+     * Hints of this game's board, made on first use so that games nobody asks hints of
+     * do not follow their changes.
+     */
+    public synchronized HintSolver getHints() {
+        if (hints == null) hints = new HintSolver(board);
+        return hints;
+    }
+    
+    /** Record activity, keeps the game from being evicted **/
+    public void touch() {
+        lastActive = System.currentTimeMillis();
+    }
+    
+    /**
+     * Add a player.
+     * @param session of the player
+     * @return false if the game was evicted, then the player was not added
+     */
+    public synchronized boolean join(Session session) {
+        if (evicted) return false;
+        board.playerJoined();
+        sessions.add(session);
+        touch();
+        return true;
+    }
+    
+    /**
+     * Remove a player or spectator.
+     * @param session of the player or spectator, no longer watching afterwards
+     */
+    public synchronized void leave(Session session) {
+        watch.unwatch(session);
+        if (feed != null) feed.unspectate(session);
+        if (sessions.remove(session)) board.playerLeft();
+        touch();
+    }
+    
+    /**
+     * Turn a player into a spectator, sent the moves of the board instead of playing it, see SpectatorFeed.
+     * @param session of the player
+     * @param from number of the first move to replay, or a negative number to start from a snapshot
+     * @return false if the game was evicted or its board is too large to look at whole
+     */
+    public synchronized boolean spectate(Session session, long from) {
+        if (evicted || (long) board.getRowNum() * board.getColNum() > Board.MAX_LOOK_CELLS) return false;
+        watch.unwatch(session);
+        if (sessions.remove(session)) board.playerLeft();
+        if (feed == null) feed = new SpectatorFeed(id, board);
+        feed.spectate(session, from);
+        touch();
+        return true;
+    }
+    
+    /**
+     * Turn a spectator back into a player.
+     * @param session of the spectator
+     * @return false if the game was evicted, then the session is neither a player nor a spectator
+     */
+    public synchronized boolean play(Session session) {
+        if (feed != null) feed.unspectate(session);
+        return join(session);
+    }
+    
+    /** Tell every player the game is won **/
+    private void announceWin() {
+        String message = "Game won! Every safe square of game " + id + " is dug";
+        for (Session session : sessions) {
+            session.send(message);
+        }
+    }
+    
+    /**
+     * Evict the game if nobody plays it and it was idle since idleMillis.
+     * @return true if the game is now evicted
+     */
+    public synchronized boolean evictIfIdle(long idleMillis) {
+        if (board.getPlayerCount() > 0 || System.currentTimeMillis() - lastActive < idleMillis) return false;
+        if (feed != null && feed.hasSpectators()) return false;
+        evicted = true;
+        close();
+        return true;
+    }
+    
+    /** Stop following the board: close the watch, frames, feed and hints of the game, for good **/
+    public synchronized void close() {
+        watch.close();
+        if (frames != null) frames.close();
+        if (feed != null) feed.close();
+        if (hints != null) hints.close();
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "game " + id + ": " + board.getColNum() + " columns by " + board.getRowNum() + " rows, "
+                + board.getPlayerCount() + " players" + (feed == null ? "" : ", " + feed.getSpectatorCount() + " spectators");
+    }
+    
+}
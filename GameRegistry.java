@@ -0,0 +1,120 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * All games hosted by a server, by id.
+ * Games are spread over a fixed set of shard executors, so a busy game only keeps its own shard busy,
+ * and games nobody played for a while are evicted. The default game, id 0, is never evicted.
+ */
+public class GameRegistry {
+    
+    /** Id of the game clients join on connection **/
+    static final int DEFAULT_GAME = 0;
+    /** Time between two eviction sweeps **/
+    private static final long SWEEP_MILLIS = 60_000;
+    
+    private final ConcurrentMap<Integer, Game> games = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(DEFAULT_GAME);
+    private final ExecutorService[] shards;
+    private final ScheduledExecutorService sweeper;
+    /** Rows per lock stripe of new boards **/
+    private final int stripeRows;
+    
+    // Abstraction function: 
+    //      Represent the games hosted by a server, games.get(id) is game id, 
+    //      game id runs on shards[id % shards.length]
+    
+    // Rep invariant:
+    //       shards.length > 0
+    //       games contains DEFAULT_GAME
+    //       every id in games < nextId
+    
+    // Rep exposure
+    //      All fields are private and final, games are shared with players and thread safe
+    
+    // Thread safety
+    //      games is a concurrent map, ids come from an atomic counter
+    
+    /**
+     * Make a GameRegistry hosting defaultBoard as game 0.
+     * 
+     * @param defaultBoard board of the default game
+     * @param shardCount number of shard executors, > 0
+     * @param shardThreads threads of each shard executor, > 0
+     * @param idleMillis time after which a game without players is evicted
+     * @param stripeRows rows per lock stripe of boards created later, see Board
+     */
+    public GameRegistry(Board defaultBoard, int shardCount, int shardThreads, long idleMillis, int stripeRows) {
+        this.stripeRows = stripeRows;
+        shards = new ExecutorService[shardCount];
+        for (int k = 0; k < shardCount; k++) {
+            String name = "game-shard-" + k;
+            shards[k] = Executors.newFixedThreadPool(shardThreads, task -> daemon(task, name));
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(task -> daemon(task, "game-sweeper"));
+        sweeper.scheduleWithFixedDelay(() -> evictIdle(idleMillis), SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+        add(defaultBoard);
+    }
+    
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+    
+    /**
+     * Host a new random board.
+     * @param n rows of the board
+     * @param m cols of the board
+     * @return the new game
+     */
+    public Game create(int n, int m) {
+        return add(new Board(n, m, stripeRows));
+    }
+    
+    private Game add(Board board) {
+        int id = nextId.getAndIncrement();
+        Game game = new Game(id, board, shards[id % shards.length]);
+        games.put(id, game);
+        return game;
+    }
+    
+    /**
+     * @param id of a game
+     * @return the game, null if there is no such game
+     */
+    public Game get(int id) {
+        return games.get(id);
+    }
+    
+    /** The game players join on connection **/
+    public Game getDefault() {
+        return games.get(DEFAULT_GAME);
+    }
+    
+    /** Hosted games, in no particular order **/
+    public List<Game> list() {
+        return new ArrayList<>(games.values());
+    }
+    
+    /** Remove every game other than the default one that nobody played since idleMillis **/
+    private void evictIdle(long idleMillis) {
+        for (Game game : games.values()) {
+            if (game.getId() != DEFAULT_GAME && game.evictIfIdle(idleMillis)) {
+                games.remove(game.getId());
+            }
+        }
+    }
+    
+}
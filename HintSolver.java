@@ -0,0 +1,557 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Hints of a board solved on the server, so that bots need not fetch the whole board and solve it themselves:
+ * <pre>
+ *   HINT ::= "safe" (SPACE X "," Y)* NEWLINE "booms" (SPACE X "," Y)* NEWLINE
+ *            "odds" (SPACE X "," Y "," PERCENT)* NEWLINE "others" SPACE PERCENT
+ * </pre>
+ * where X is the col and Y the row of a square of the frontier, a hidden square next to a dug one,
+ * listed as surely safe, surely a boom, or else with its chance in percent of being a boom,
+ * and the last PERCENT is the chance of a boom on any hidden square off the frontier.
+ * Flags are the players' guesses, not trusted: a flagged square is as hidden as an untouched one.
+ * 
+ * Each dug square of the frontier is a clue: so many booms among its hidden neighbours. The clues are kept
+ * between hints, and a hint only reads again the clues around the squares dug since the last one, which the
+ * board tells this solver as a listener. Clues sharing no square are independent: only the components of the
+ * clues that changed are solved again, in parallel on a fork/join pool, the others keep their last results.
+ * A component is solved by enumerating how many booms each group of its squares with the same clues holds,
+ * counted by their total number of booms, so that each hint weights them by their chance if every hidden square
+ * is a boom independently with the density of the booms left then, without solving again.
+ * A component too large to enumerate falls back to what each of its clues tells alone.
+ * So a hint costs in the squares dug since the last one and the components they touch, plus its reply,
+ * not in the size of the board, but for the first one, which reads the whole board once.
+ */
+public class HintSolver implements BoardListener {
+    
+    /** Most search steps spent on a component before falling back to its clues alone **/
+    private static final long MAX_STEPS = 1 << 20;
+    /** Most squares of a component whose placements of booms are searched, larger ones fall back to their clues **/
+    private static final int MAX_EXACT_SQUARES = 256;
+    /** Most squares dug between two hints recorded, past that the next hint reads the whole board again **/
+    private static final int MAX_PENDING = 1 << 20;
+    /** Rows read holding their stripes at once **/
+    private static final int BAND_ROWS = 64;
+    /** Least and most density of booms used, so that every count of booms keeps some weight **/
+    private static final double MIN_DENSITY = 1e-6;
+    /** Solves the components of every board's hints **/
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static final int[] NONE = new int[0];
+    
+    /** The board hinted **/
+    private final Board board;
+    /** Number of rows and cols of the board, a square is numbered row * m + col **/
+    private final int n;
+    private final int m;
+    /** Squares dug since the last hint **/
+    private int[] pending = new int[64];
+    private int pendingSize = 0;
+    /** True if the next hint must read the whole board **/
+    private boolean rescan = true;
+    /** Guards pending, pendingSize and rescan **/
+    private final Object changes = new Object();
+    /** Clues of the frontier, by square **/
+    private final Map<Integer, Clue> clues = new HashMap<>();
+    /** Hidden squares of the frontier, by square **/
+    private final TreeMap<Integer, Hidden> hidden = new TreeMap<>();
+    /** Density of the booms left at the last hint **/
+    private double density = Board.BOOM_PROBABILITY;
+    /** Last mark of a search of the components **/
+    private int visits = 0;
+    
+    // Abstraction function:
+    //      Represent the hints of board, where clues are its dug squares with hidden neighbours as of the last hint,
+    //      but for the squares in pending, or every square if rescan, and hidden the squares of their neighbours,
+    //      each telling its chance of being a boom from the component it was last solved in
+    
+    // Rep invariant:
+    //       clues.get(s).square == s and hidden.get(s).square == s
+    //       hidden.get(s).clues are the clues whose around holds s, never empty
+    //       0 <= pendingSize <= MAX_PENDING
+    
+    // Rep exposure
+    //      All fields are private, clues and hidden are never returned
+    
+    // Thread safety
+    //      pending, pendingSize and rescan are guarded by changes, the listener never waits for a hint.
+    //      clues, hidden, density, visits and the components of the hidden squares are guarded by this.
+    //      A component solved by the pool is only written by its task, and read once the pool is done.
+    
+    /**
+     * Make a HintSolver, reading the board on the first hint and then following its changes.
+     * @param board to hint, requires a board small enough to look at whole
+     */
+    public HintSolver(Board board) {
+        this.board = board;
+        this.n = board.getRowNum();
+        this.m = board.getColNum();
+        board.addListener(this);
+    }
+    
+    /** Stop following the changes of the board, for good **/
+    public void close() {
+        board.removeListener(this);
+    }
+    
+    @Override
+    public void cellChanged(int row, int col, int cell) {
+        if ((cell & Board.STATE_MASK) != Board.DUG) return;
+        synchronized (changes) {
+            if (rescan) return;
+            if (pendingSize == MAX_PENDING) {
+                rescan = true;
+                pending = new int[64];
+                pendingSize = 0;
+                return;
+            }
+            if (pendingSize == pending.length) pending = Arrays.copyOf(pending, 2 * pending.length);
+            pending[pendingSize++] = row * m + col;
+        }
+    }
+    
+    /**
+     * Hint of part of the board, see HINT, counting its squares in session.squares.
+     * @param session asking the hint
+     * @param x the num of the first col hinted
+     * @param y the num of the first row hinted
+     * @param w number of cols hinted, clipped to the board
+     * @param h number of rows hinted, clipped to the board
+     * @return the hint
+     */
+    public synchronized String hint(Session session, int x, int y, int w, int h) {
+        update();
+        int fromCol = Math.max(x, 0), toCol = (int) Math.min((long) x + Math.max(w, 0), m);
+        int fromRow = Math.max(y, 0), toRow = (int) Math.min((long) y + Math.max(h, 0), n);
+        double ratio = density / (1 - density);
+        StringBuilder safe = new StringBuilder("safe");
+        StringBuilder booms = new StringBuilder("booms");
+        StringBuilder odds = new StringBuilder("odds");
+        for (int i = fromRow; i < toRow && fromCol < toCol; i++) {
+            for (Hidden square : hidden.subMap(i * m + fromCol, i * m + toCol).values()) {
+                StringBuilder s = square.isSafe() ? safe : square.isBoom() ? booms : odds;
+                s.append(' ').append(square.square % m).append(',').append(i);
+                if (s == odds) s.append(',').append(percent(square.chance(ratio)));
+                session.squares++;
+            }
+        }
+        return safe.append('\n').append(booms).append('\n').append(odds)
+                .append("\nothers ").append(percent(density)).toString();
+    }
+    
+    /** Bring the clues up to date with the board, and solve again the components whose clues changed **/
+    private void update() {
+        int[] dug;
+        boolean all;
+        synchronized (changes) {
+            all = rescan;
+            dug = Arrays.copyOf(pending, pendingSize);
+            rescan = false;
+            pendingSize = 0;
+        }
+        Set<Clue> touched = new LinkedHashSet<>();
+        if (all) readAll(touched);
+        else readAround(dug, touched);
+        long left = board.getBoomCount(), safe = board.getHiddenSafeCount();
+        double p = left < 0 || safe < 0 || left + safe == 0 ? Board.BOOM_PROBABILITY : (double) left / (left + safe);
+        density = Math.min(Math.max(p, MIN_DENSITY), 1 - MIN_DENSITY);
+        List<Component> components = components(touched);
+        if ( ! components.isEmpty()) POOL.invoke(new Solve(components, 0, components.size()));
+    }
+    
+    /** Read every clue of the board again **/
+    private void readAll(Set<Clue> touched) {
+        clues.clear();
+        hidden.clear();
+        for (int lo = 0; lo < n; lo += BAND_ROWS) {
+            int from = lo, to = Math.min(lo + BAND_ROWS, n);
+            board.readRows(Math.max(from - 1, 0), Math.min(to + 1, n), () -> {
+                for (int i = from; i < to; i++) {
+                    for (int j = 0; j < m; j++) {
+                        if ((board.cellAt(i, j) & Board.STATE_MASK) == Board.DUG) readClue(i, j, touched);
+                    }
+                }
+                return null;
+            });
+        }
+    }
+    
+    /** Read again the clues of the squares dug and of their neighbours, a band of rows at a time **/
+    private void readAround(int[] dug, Set<Clue> touched) {
+        int[] squares = new int[9 * dug.length];
+        int size = 0;
+        for (int square : dug) {
+            int i = square / m, j = square % m;
+            for (int r = Math.max(i - 1, 0); r <= Math.min(i + 1, n - 1); r++) {
+                for (int c = Math.max(j - 1, 0); c <= Math.min(j + 1, m - 1); c++) {
+                    squares[size++] = r * m + c;
+                }
+            }
+        }
+        Arrays.sort(squares, 0, size);
+        int start = 0;
+        while (start < size) {
+            int first = squares[start] / m;
+            int end = start;
+            while (end < size && squares[end] / m < first + BAND_ROWS) end++;
+            int from = start, to = end, last = squares[end - 1] / m;
+            board.readRows(Math.max(first - 1, 0), Math.min(last + 2, n), () -> {
+                for (int k = from; k < to; k++) {
+                    if (k > from && squares[k] == squares[k - 1]) continue;
+                    readClue(squares[k] / m, squares[k] % m, touched);
+                }
+                return null;
+            });
+            start = end;
+        }
+    }
+    
+    /**
+     * Read the clue of the square at row i col j, none if it is hidden or has no hidden neighbour.
+     * Requires the stripes of rows i-1..i+1 held.
+     */
+    private void readClue(int i, int j, Set<Clue> touched) {
+        int cell = board.cellAt(i, j);
+        int[] around = NONE;
+        if ((cell & Board.STATE_MASK) == Board.DUG) {
+            int[] found = new int[8];
+            int count = 0;
+            for (int r = Math.max(i - 1, 0); r <= Math.min(i + 1, n - 1); r++) {
+                for (int c = Math.max(j - 1, 0); c <= Math.min(j + 1, m - 1); c++) {
+                    if ((board.cellAt(r, c) & Board.STATE_MASK) != Board.DUG) found[count++] = r * m + c;
+                }
+            }
+            around = Arrays.copyOf(found, count);
+        }
+        setClue(i * m + j, cell & Board.COUNT_MASK, around, touched);
+    }
+    
+    /**
+     * Replace the clue of a square, adding to touched the clues whose component may have changed.
+     * @param square of the clue
+     * @param booms among the hidden neighbours
+     * @param around hidden neighbours, in increasing order, none to remove the clue
+     * @param touched clues to solve again
+     */
+    private void setClue(int square, int booms, int[] around, Set<Clue> touched) {
+        Clue old = clues.get(square);
+        if (old != null && old.booms == booms && Arrays.equals(old.around, around)) return;
+        if (old != null) {
+            clues.remove(square);
+            for (Hidden neighbour : old.squares) {
+                neighbour.clues.remove(old);
+                if (neighbour.clues.isEmpty()) hidden.remove(neighbour.square);
+                else touched.addAll(neighbour.clues);
+            }
+        }
+        if (around.length == 0) return;
+        Clue clue = new Clue(square, booms, around);
+        clues.put(square, clue);
+        for (int k = 0; k < around.length; k++) {
+            clue.squares[k] = hidden.computeIfAbsent(around[k], Hidden::new);
+            clue.squares[k].clues.add(clue);
+        }
+        touched.add(clue);
+    }
+    
+    /** Components of the clues touched still on the frontier, each found once **/
+    private List<Component> components(Set<Clue> touched) {
+        List<Component> components = new ArrayList<>();
+        int mark = ++visits;
+        for (Clue start : touched) {
+            if (clues.get(start.square) != start || start.visit == mark) continue;
+            List<Clue> found = new ArrayList<>();
+            List<Hidden> squares = new ArrayList<>();
+            start.visit = mark;
+            found.add(start);
+            for (int k = 0; k < found.size(); k++) {
+                for (Hidden square : found.get(k).squares) {
+                    if (square.visit == mark) continue;
+                    square.visit = mark;
+                    squares.add(square);
+                    for (Clue next : square.clues) {
+                        if (next.visit == mark) continue;
+                        next.visit = mark;
+                        found.add(next);
+                    }
+                }
+            }
+            components.add(new Component(found, squares));
+        }
+        return components;
+    }
+    
+    /** Chance of a boom in percent, 1..99 since a certain square is never listed with its odds **/
+    private static long percent(double chance) {
+        return Math.min(99, Math.max(1, Math.round(100 * chance)));
+    }
+    
+    /** A dug square of the frontier: booms among its hidden neighbours around **/
+    private static final class Clue {
+        final int square;
+        final int booms;
+        final int[] around;
+        /** The hidden squares of around **/
+        final Hidden[] squares;
+        /** Mark of the last search that reached it, and its index in the component it was last solved in **/
+        int visit;
+        int index;
+        
+        Clue(int square, int booms, int[] around) {
+            this.square = square;
+            this.booms = booms;
+            this.around = around;
+            this.squares = new Hidden[around.length];
+        }
+    }
+    
+    /** A hidden square of the frontier, in a group of the component it was last solved in **/
+    private static final class Hidden {
+        final int square;
+        /** Clues it is around, changed by the solver only **/
+        final List<Clue> clues = new ArrayList<>(2);
+        /** Mark of the last search that reached it **/
+        int visit;
+        /** Component and group it was last solved in **/
+        Component component;
+        int group;
+        
+        Hidden(int square) {
+            this.square = square;
+        }
+        
+        /** @return true if it is surely safe **/
+        boolean isSafe() {
+            return component.isSafe(this);
+        }
+        
+        /** @return true if it is surely a boom **/
+        boolean isBoom() {
+            return component.isBoom(this);
+        }
+        
+        /** @return chance of a boom on it, with odds ratio of a boom on any hidden square **/
+        double chance(double ratio) {
+            return component.chance(this, ratio);
+        }
+    }
+    
+    /** Solves the components from..to-1, halving the range until one is left **/
+    private static final class Solve extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final transient List<Component> components;
+        private final int from;
+        private final int to;
+        
+        Solve(List<Component> components, int from, int to) {
+            this.components = components;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                components.get(from).solve();
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Solve(components, from, mid), new Solve(components, mid, to));
+        }
+    }
+    
+    /**
+     * Clues sharing hidden squares, directly or not, with their squares in groups of squares around the same clues:
+     * the squares of a group are alike, only how many of them are booms matters. Solving counts the ways of placing
+     * booms that fit every clue by their total number of booms, which the density of booms weights at each hint.
+     */
+    private static final class Component {
+        private final Hidden[][] groups;
+        /** Clues of each group, as indexes of booms and open **/
+        private final int[][] groupClues;
+        /** Booms still to place around each clue, and squares around it not yet counted **/
+        private final int[] booms;
+        private final int[] open;
+        /** Booms of each group in the placement being searched **/
+        private final int[] counts;
+        /** True if every placement was found, else the squares are estimated from their clues alone **/
+        private boolean exact;
+        /** ways[k]: ways of placing k booms, weighted[g][k]: sum over them of the booms of group g **/
+        private double[] ways;
+        private double[][] weighted;
+        /** Most booms any placement has **/
+        private final int maxBooms;
+        /** Least and most booms of each group over the placements **/
+        private final int[] least;
+        private final int[] most;
+        private long steps;
+        /** Chance of a boom on a square of each group, for the odds ratio of the last hint that asked **/
+        private double lastRatio = Double.NaN;
+        private double[] chances;
+        
+        Component(List<Clue> clues, List<Hidden> squares) {
+            booms = new int[clues.size()];
+            open = new int[clues.size()];
+            int total = 0;
+            for (int k = 0; k < clues.size(); k++) {
+                clues.get(k).index = k;
+                booms[k] = clues.get(k).booms;
+                open[k] = clues.get(k).around.length;
+                total += booms[k];
+            }
+            // every square neighbours a clue, so no placement has more booms than the clues together
+            maxBooms = Math.min(squares.size(), total);
+            Map<String, List<Hidden>> alike = new LinkedHashMap<>();
+            List<int[]> alikeClues = new ArrayList<>();
+            for (Hidden square : squares) {
+                int[] around = new int[square.clues.size()];
+                for (int k = 0; k < around.length; k++) {
+                    around[k] = square.clues.get(k).index;
+                }
+                Arrays.sort(around);
+                alike.computeIfAbsent(Arrays.toString(around), key -> {
+                    alikeClues.add(around);
+                    return new ArrayList<>();
+                }).add(square);
+            }
+            groups = new Hidden[alike.size()][];
+            groupClues = alikeClues.toArray(new int[0][]);
+            int g = 0;
+            for (List<Hidden> group : alike.values()) {
+                groups[g] = group.toArray(new Hidden[0]);
+                for (Hidden square : groups[g]) {
+                    square.component = this;
+                    square.group = g;
+                }
+                g++;
+            }
+            counts = new int[groups.length];
+            exact = squares.size() <= MAX_EXACT_SQUARES;
+            least = new int[groups.length];
+            most = new int[groups.length];
+            Arrays.fill(least, Integer.MAX_VALUE);
+            Arrays.fill(most, -1);
+        }
+        
+        /** Find every placement of booms fitting the clues, if there are few enough **/
+        void solve() {
+            if ( ! exact) return;
+            ways = new double[maxBooms + 1];
+            weighted = new double[groups.length][maxBooms + 1];
+            // binomials[g][c]: ways of placing c booms among the squares of group g
+            double[][] binomials = new double[groups.length][];
+            for (int g = 0; g < groups.length; g++) {
+                int size = groups[g].length;
+                binomials[g] = new double[size + 1];
+                binomials[g][0] = 1;
+                for (int c = 1; c <= size; c++) {
+                    binomials[g][c] = binomials[g][c - 1] * (size - c + 1) / c;
+                }
+            }
+            exact = search(0, 0, 1, binomials) && most[0] >= 0;
+        }
+        
+        /**
+         * Enumerate the booms of groups g on, each group's count fitting every clue around it.
+         * @param placed booms of the groups before g
+         * @param times ways of placing them
+         * @return false if the search ran out of steps
+         */
+        private boolean search(int g, int placed, double times, double[][] binomials) {
+            if (++steps > MAX_STEPS) return false;
+            if (g == groups.length) {
+                ways[placed] += times;
+                for (int k = 0; k < groups.length; k++) {
+                    weighted[k][placed] += times * counts[k];
+                    least[k] = Math.min(least[k], counts[k]);
+                    most[k] = Math.max(most[k], counts[k]);
+                }
+                return true;
+            }
+            int size = groups[g].length;
+            int low = 0, high = size;
+            for (int k : groupClues[g]) {
+                high = Math.min(high, booms[k]);
+                // the squares of the clue left after this group must hold its other booms
+                low = Math.max(low, booms[k] - (open[k] - size));
+            }
+            for (int k : groupClues[g]) open[k] -= size;
+            boolean done = true;
+            for (int c = low; c <= high && done; c++) {
+                for (int k : groupClues[g]) booms[k] -= c;
+                counts[g] = c;
+                done = search(g + 1, placed + c, times * binomials[g][c], binomials);
+                for (int k : groupClues[g]) booms[k] += c;
+            }
+            for (int k : groupClues[g]) open[k] += size;
+            return done;
+        }
+        
+        boolean isSafe(Hidden square) {
+            if (exact) return most[square.group] == 0;
+            for (Clue clue : square.clues) {
+                if (clue.booms == 0) return true;
+            }
+            return false;
+        }
+        
+        boolean isBoom(Hidden square) {
+            if (exact) return least[square.group] == groups[square.group].length;
+            for (Clue clue : square.clues) {
+                if (clue.booms == clue.around.length) return true;
+            }
+            return false;
+        }
+        
+        /**
+         * Chance of a boom on a square: the placements weighted by ratio to the power of their booms,
+         * or else the mean of what its clues tell alone.
+         */
+        double chance(Hidden square, double ratio) {
+            if ( ! exact) {
+                double sum = 0;
+                for (Clue clue : square.clues) {
+                    sum += (double) clue.booms / clue.around.length;
+                }
+                return sum / square.clues.size();
+            }
+            if (ratio != lastRatio) {
+                // powers of ratio scaled by the heaviest term, so that none overflows or all underflow
+                double log = Math.log(ratio), heaviest = Double.NEGATIVE_INFINITY;
+                for (int k = 0; k < ways.length; k++) {
+                    if (ways[k] > 0) heaviest = Math.max(heaviest, Math.log(ways[k]) + k * log);
+                }
+                double total = 0;
+                double[] powers = new double[ways.length];
+                for (int k = 0; k < ways.length; k++) {
+                    powers[k] = ways[k] > 0 ? Math.exp(Math.log(ways[k]) + k * log - heaviest) : 0;
+                    total += powers[k];
+                }
+                chances = new double[groups.length];
+                for (int g = 0; g < groups.length; g++) {
+                    double sum = 0;
+                    for (int k = 0; k < ways.length; k++) {
+                        if (ways[k] > 0) sum += weighted[g][k] / ways[k] * powers[k];
+                    }
+                    chances[g] = sum / total / groups[g].length;
+                }
+                lastRatio = ratio;
+            }
+            return chances[square.group];
+        }
+    }
+    
+}
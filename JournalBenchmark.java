@@ -0,0 +1,83 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the cost of durability: flag and deflag moves on a board without journal,
+ * then on a journaled board waiting for each move to be on disk, with more and more clients
+ * sharing the fsyncs of the journal.
+ * 
+ * <br> Usage: java JournalBenchmark [DIR]
+ * <br> DIR is where the journal is written, a temporary directory by default.
+ *      It should be on the disk to measure, not on a memory file system.
+ */
+public class JournalBenchmark {
+    
+    /** Board size, large enough for every client to move on its own rows **/
+    private static final int SIZE = 512;
+    /** Numbers of concurrent clients measured **/
+    private static final int[] CLIENTS = {1, 4, 16, 64};
+    
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File dir = args.length > 0 ? new File(args[0]) : Files.createTempDirectory("journal").toFile();
+        Board plain = new Board(SIZE, SIZE, 8);
+        int[] next = {0};
+        Bench.run("flag + deflag, no journal", () -> move(plain, 0, next[0]++));
+        
+        MoveJournal journal = MoveJournal.open(dir, () -> new Board(SIZE, SIZE, 8), 8, Long.MAX_VALUE);
+        Board board = journal.getBoard();
+        System.out.println("journal in " + dir);
+        for (int clients : CLIENTS) {
+            long syncs = journal.getSyncs();
+            long calls = clients(board, journal, clients);
+            syncs = journal.getSyncs() - syncs;
+            System.out.println(String.format("%-40s %14.0f ops/s %10.1f moves/fsync",
+                    "flag + deflag + sync, " + clients + " clients", calls * 1000.0 / Bench.MEASURE_MILLIS,
+                    2.0 * calls / Math.max(1, syncs)));
+        }
+        journal.close();
+    }
+    
+    /** Flag then deflag a square of the rows of client **/
+    private static int move(Board board, int client, int k) {
+        int x = k % SIZE;
+        int y = (client * 8 + (k / SIZE) % 8) % SIZE;
+        board.flag(x, y);
+        board.deflag(x, y);
+        return 1;
+    }
+    
+    /** Run clients threads moving and waiting for their moves to be on disk, return the calls measured **/
+    private static long clients(Board board, MoveJournal journal, int clients) throws InterruptedException {
+        AtomicLong calls = new AtomicLong();
+        long start = System.nanoTime();
+        long measureFrom = start + Bench.WARMUP_MILLIS * 1_000_000;
+        long deadline = measureFrom + Bench.MEASURE_MILLIS * 1_000_000;
+        Thread[] threads = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            threads[c] = new Thread(() -> {
+                long count = 0;
+                for (int k = 0; ; k++) {
+                    long now = System.nanoTime();
+                    if (now >= deadline) break;
+                    move(board, client, k);
+                    journal.sync().join();
+                    if (now >= measureFrom) count++;
+                }
+                calls.addAndGet(count);
+            });
+            threads[c].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return calls.get();
+    }
+    
+}
@@ -0,0 +1,130 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds, or of any other non negative amounts such as sizes,
+ * with log-linear buckets: each power of two is split into SUB_BUCKETS buckets,
+ * so a percentile is within about 3% of the exact value, from 1 ns to centuries.
+ * Recording is one atomic increment, without allocation, and safe from any number of threads.
+ */
+public class LatencyHistogram {
+    
+    /** Log2 of the number of buckets per power of two **/
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /** Buckets needed for every non negative long **/
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    
+    // Abstraction function: 
+    //      Represent a multiset of durations, counts.get(k) of them in the range of bucket k
+    
+    // Rep invariant:
+    //       counts.get(k) >= 0
+    
+    // Rep exposure
+    //      counts is private and final, never returned
+    
+    // Thread safety
+    //      counts is only changed by atomic increments, readers see a count per bucket at least as large
+    //      as when they started reading
+    
+    /**
+     * Record one duration.
+     * @param nanos duration, negative durations count as 0
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(bucket(Math.max(nanos, 0)));
+    }
+    
+    /** Add every duration of other to this histogram **/
+    public void add(LatencyHistogram other) {
+        for (int k = 0; k < BUCKETS; k++) {
+            long count = other.counts.get(k);
+            if (count != 0) counts.addAndGet(k, count);
+        }
+    }
+    
+    /** Forget every duration **/
+    public void reset() {
+        for (int k = 0; k < BUCKETS; k++) {
+            counts.set(k, 0);
+        }
+    }
+    
+    /** Number of recorded durations **/
+    public long count() {
+        long total = 0;
+        for (int k = 0; k < BUCKETS; k++) {
+            total += counts.get(k);
+        }
+        return total;
+    }
+    
+    /**
+     * @param fraction in 0..1, e.g. 0.99 for the 99th percentile
+     * @return smallest duration at least fraction of the durations are not above, 0 if none was recorded
+     */
+    public long percentile(double fraction) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int k = 0; k < BUCKETS; k++) {
+            snapshot[k] = counts.get(k);
+            total += snapshot[k];
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int k = 0; k < BUCKETS; k++) {
+            seen += snapshot[k];
+            if (seen >= rank) return highest(k);
+        }
+        return highest(BUCKETS - 1);
+    }
+    
+    /** Largest recorded duration, to the bucket precision, 0 if none was recorded **/
+    public long max() {
+        for (int k = BUCKETS - 1; k >= 0; k--) {
+            if (counts.get(k) != 0) return highest(k);
+        }
+        return 0;
+    }
+    
+    /** Mean duration, to the bucket precision, 0 if none was recorded **/
+    public double mean() {
+        double sum = 0;
+        long total = 0;
+        for (int k = 0; k < BUCKETS; k++) {
+            long count = counts.get(k);
+            sum += (double) count * (lowest(k) + (highest(k) - lowest(k)) / 2);
+            total += count;
+        }
+        return total == 0 ? 0 : sum / total;
+    }
+    
+    /** Bucket of a duration **/
+    private static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) return (int) nanos;
+        int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) (nanos >>> shift) - SUB_BUCKETS;
+    }
+    
+    /** Smallest duration of bucket k **/
+    private static long lowest(int k) {
+        if (k < SUB_BUCKETS) return k;
+        int shift = (k >>> SUB_BITS) - 1;
+        return (long) ((k & (SUB_BUCKETS - 1)) + SUB_BUCKETS) << shift;
+    }
+    
+    /** Largest duration of bucket k **/
+    private static long highest(int k) {
+        if (k < SUB_BUCKETS) return k;
+        int shift = (k >>> SUB_BITS) - 1;
+        return lowest(k) + (1L << shift) - 1;
+    }
+    
+}
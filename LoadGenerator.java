@@ -0,0 +1,354 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator for MinesweeperServer: N clients connect over loopback and each sends a random mix of
+ * look, dig, flag and deflag, waiting a random think time between a reply and its next command.
+ * A client disconnected after a BOOM! connects again. Each command's latency, from sending it to
+ * reading its whole reply, goes to a histogram per command.
+ * By default the server runs in the same process, so a run needs nothing but this machine.
+ * 
+ * <br> Usage: java LoadGenerator [--clients N] [--seconds S] [--warmup S] [--mix LOOK,DIG,FLAG,DEFLAG]
+ *                               [--think MILLIS] [--size X,Y] [--stripe ROWS] [--engine thread | virtual | nio]
+ *                               [--debug] [--connect HOST:PORT] [--out FILE] [--max-p99 MILLIS] [--max-errors N]
+ *                               [--viewport W,H]
+ * <br> N clients, 50 by default, run for S seconds, 10 by default, after a warmup of 2 seconds.
+ * <br> The mix gives the relative weight of each command, 2,4,3,1 by default.
+ * <br> Think times are uniform between 0 and twice MILLIS, 10 by default, 0 for no think time.
+ * <br> The in-process server has a SIZE X,Y board, 100,100 by default, and is started with --stripe, --engine
+ *      and --debug as MinesweeperServer.main(..) would be. --connect drives another server instead.
+ *      Clients play on the board size the hello line of the server tells.
+ * <br> --viewport makes each connection look at, and bind its move replies to, W columns by H rows of the board
+ *      at a random place, and play inside them, as a client showing a screenful of a large board would.
+ * <br> FILE receives the results as CSV.
+ * <br> --max-p99 and --max-errors make the run a regression gate: the exit status is 1 if the p99 latency
+ *      of any command is above MILLIS, or if there were more than N errors.
+ * <br> E.g. "java LoadGenerator --clients 200 --think 0 --out load.csv"
+ */
+public class LoadGenerator {
+    
+    /** Commands sent, in the order of the mix weights **/
+    private static final String[] COMMANDS = {"look", "dig", "flag", "deflag"};
+    private static final int LOOK = 0;
+    private static final String BOOM = "BOOM!";
+    
+    private int clients = 50;
+    private long seconds = 10;
+    private long warmupSeconds = 2;
+    private int[] mix = {2, 4, 3, 1};
+    private long thinkMillis = 10;
+    private int sizeX = 100;
+    private int sizeY = 100;
+    /** Size of the viewport of each connection, 0 to look at the whole board **/
+    private int viewWidth = 0;
+    private int viewHeight = 0;
+    private boolean debug = false;
+    private final ServerConfig config = new ServerConfig();
+    private InetSocketAddress target;
+    private File out;
+    private double maxP99Millis = Double.NaN;
+    private long maxErrors = -1;
+    
+    /** Latency of each command **/
+    private final LatencyHistogram[] latencies = new LatencyHistogram[COMMANDS.length];
+    /** Measured commands and errors of each command **/
+    private final AtomicLong[] done = new AtomicLong[COMMANDS.length];
+    private final AtomicLong[] errors = new AtomicLong[COMMANDS.length];
+    private final AtomicLong booms = new AtomicLong();
+    private final AtomicLong connectErrors = new AtomicLong();
+    
+    // Abstraction function:
+    //      Represent one load run and its results, commands[k] was sent done[k] times while measuring,
+    //      with latencies[k] and errors[k] failures
+    
+    // Thread safety
+    //      Settings are written by main before the clients start, results are atomic
+    
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LoadGenerator load = new LoadGenerator();
+        try {
+            load.parse(args);
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.err.println("usage: LoadGenerator [--clients N] [--seconds S] [--warmup S] [--mix LOOK,DIG,FLAG,DEFLAG]"
+                    + " [--think MILLIS] [--size X,Y] [--stripe ROWS] [--engine thread | virtual | nio] [--debug]"
+                    + " [--connect HOST:PORT] [--out FILE] [--max-p99 MILLIS] [--max-errors N] [--viewport W,H]");
+            System.exit(2);
+        }
+        System.exit(load.run() ? 0 : 1);
+    }
+    
+    private LoadGenerator() {
+        for (int k = 0; k < COMMANDS.length; k++) {
+            latencies[k] = new LatencyHistogram();
+            done[k] = new AtomicLong();
+            errors[k] = new AtomicLong();
+        }
+    }
+    
+    private void parse(String[] args) {
+        for (int k = 0; k < args.length; k++) {
+            String flag = args[k];
+            try {
+                if (flag.equals("--debug")) {
+                    debug = true;
+                    continue;
+                }
+                String value = args[++k];
+                if (flag.equals("--clients")) clients = Integer.parseInt(value);
+                else if (flag.equals("--seconds")) seconds = Long.parseLong(value);
+                else if (flag.equals("--warmup")) warmupSeconds = Long.parseLong(value);
+                else if (flag.equals("--think")) thinkMillis = Long.parseLong(value);
+                else if (flag.equals("--stripe")) config.stripeRows = Integer.parseInt(value);
+                else if (flag.equals("--engine")) config.engine = value;
+                else if (flag.equals("--out")) out = new File(value);
+                else if (flag.equals("--max-p99")) maxP99Millis = Double.parseDouble(value);
+                else if (flag.equals("--max-errors")) maxErrors = Long.parseLong(value);
+                else if (flag.equals("--mix")) {
+                    String[] weights = value.split(",");
+                    if (weights.length != COMMANDS.length) throw new IllegalArgumentException("--mix needs 4 weights");
+                    for (int c = 0; c < COMMANDS.length; c++) mix[c] = Integer.parseInt(weights[c]);
+                } else if (flag.equals("--size")) {
+                    String[] sizes = value.split(",");
+                    sizeX = Integer.parseInt(sizes[0]);
+                    sizeY = Integer.parseInt(sizes[1]);
+                } else if (flag.equals("--viewport")) {
+                    String[] sizes = value.split(",");
+                    viewWidth = Integer.parseInt(sizes[0]);
+                    viewHeight = Integer.parseInt(sizes[1]);
+                } else if (flag.equals("--connect")) {
+                    int colon = value.lastIndexOf(':');
+                    target = new InetSocketAddress(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1)));
+                } else {
+                    throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
+                }
+            } catch (ArrayIndexOutOfBoundsException aioobe) {
+                throw new IllegalArgumentException("missing argument for " + flag);
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("unable to parse number for " + flag);
+            }
+        }
+        if (clients <= 0 || seconds <= 0 || warmupSeconds < 0 || thinkMillis < 0) {
+            throw new IllegalArgumentException("clients and seconds must be positive, warmup and think not negative");
+        }
+        int total = 0;
+        for (int weight : mix) {
+            if (weight < 0) throw new IllegalArgumentException("mix weights must not be negative");
+            total += weight;
+        }
+        if (total == 0) throw new IllegalArgumentException("mix weights must not all be 0");
+        if (viewWidth < 0 || viewHeight < 0 || (viewWidth == 0) != (viewHeight == 0)) {
+            throw new IllegalArgumentException("viewport sizes must be both positive");
+        }
+        ConnectionEngine.forName(config.engine);
+    }
+    
+    /**
+     * Run the load and report it.
+     * @return false if a gate of --max-p99 or --max-errors failed
+     */
+    private boolean run() throws IOException, InterruptedException {
+        if (target == null) {
+            MinesweeperServer server = MinesweeperServer.prepareMinesweeperServer(debug, Optional.empty(), sizeX, sizeY, 0, config);
+            Thread serving = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }, "load-server");
+            serving.setDaemon(true);
+            serving.start();
+            target = new InetSocketAddress("127.0.0.1", server.getPort());
+        }
+        long start = System.nanoTime();
+        long measureFrom = start + warmupSeconds * 1_000_000_000;
+        long deadline = measureFrom + seconds * 1_000_000_000;
+        Thread[] threads = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            SplittableRandom random = new SplittableRandom(c);
+            threads[c] = new Thread(() -> client(random, measureFrom, deadline), "load-client-" + c);
+            threads[c].setDaemon(true);
+            threads[c].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return report();
+    }
+    
+    /** Body of a client thread: connect, then send commands until deadline, connecting again after a BOOM! **/
+    private void client(SplittableRandom random, long measureFrom, long deadline) {
+        int total = 0;
+        for (int weight : mix) total += weight;
+        while (System.nanoTime() < deadline) {
+            try (Socket socket = new Socket()) {
+                socket.connect(target);
+                socket.setTcpNoDelay(true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter toServer = new PrintWriter(socket.getOutputStream(), true);
+                String hello = in.readLine();
+                if (hello == null) throw new IOException("closed before hello");
+                int[] size = boardSize(hello);
+                int cols = size[0], rows = size[1];
+                // the part of the board played, the whole board unless --viewport; x is a col and y a row
+                int fromX = 0, fromY = 0, width = cols, height = rows;
+                String look = COMMANDS[LOOK];
+                if (viewWidth > 0) {
+                    width = Math.min(viewWidth, cols);
+                    height = Math.min(viewHeight, rows);
+                    fromX = random.nextInt(cols - width + 1);
+                    fromY = random.nextInt(rows - height + 1);
+                    look = COMMANDS[LOOK] + " " + fromX + " " + fromY + " " + width + " " + height;
+                    toServer.println(look);
+                    toServer.println("bind");
+                    if (readReply(in) == null || readReply(in) == null) throw new IOException("closed before bind");
+                }
+                while (System.nanoTime() < deadline) {
+                    int command = pick(random.nextInt(total));
+                    String line = command == LOOK ? look
+                            : COMMANDS[command] + " " + (fromX + random.nextInt(width)) + " " + (fromY + random.nextInt(height));
+                    long sent = System.nanoTime();
+                    toServer.println(line);
+                    String reply = readReply(in);
+                    long latency = System.nanoTime() - sent;
+                    boolean measured = sent >= measureFrom;
+                    if (measured) {
+                        latencies[command].record(latency);
+                        done[command].incrementAndGet();
+                    }
+                    if (reply == null) {
+                        if (measured) errors[command].incrementAndGet();
+                        break;
+                    }
+                    if (BOOM.equals(reply)) {
+                        if (measured) booms.incrementAndGet();
+                        if (!debug) break;
+                    } else if (!reply.startsWith(" ")) {
+                        // anything but a board, e.g. "Invalid input"
+                        if (measured) errors[command].incrementAndGet();
+                    }
+                    if (thinkMillis > 0) Thread.sleep(random.nextLong(2 * thinkMillis + 1));
+                }
+            } catch (IOException ioe) {
+                if (System.nanoTime() >= measureFrom) connectErrors.incrementAndGet();
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Cols and rows of the board played, as told by the hello line "... Board: C columns by R rows. ...",
+     * else as given by --size, whose X is the number of rows of the board and Y its number of cols.
+     */
+    private int[] boardSize(String hello) {
+        String[] words = hello.split(" ");
+        for (int k = 0; k + 4 < words.length; k++) {
+            if (!words[k].equals("Board:") || !words[k + 2].equals("columns")) continue;
+            try {
+                return new int[] {Integer.parseInt(words[k + 1]), Integer.parseInt(words[k + 4])};
+            } catch (NumberFormatException nfe) {
+                break;
+            }
+        }
+        return new int[] {sizeY, sizeX};
+    }
+    
+    /** Command of a draw in 0..sum of the mix weights - 1 **/
+    private int pick(int draw) {
+        for (int k = 0; k < mix.length; k++) {
+            draw -= mix[k];
+            if (draw < 0) return k;
+        }
+        return mix.length - 1;
+    }
+    
+    /**
+     * Read one reply: BOOM!, a board up to its closing empty line, or any other single line.
+     * @return BOOM if the reply was a boom, the first line of the reply otherwise, null if the connection closed
+     */
+    private static String readReply(BufferedReader in) throws IOException {
+        String first = in.readLine();
+        if (first == null) return null;
+        if (first.equals(BOOM)) return BOOM;
+        if (first.startsWith(" ")) {
+            String line;
+            do {
+                line = in.readLine();
+                if (line == null) return null;
+            } while (!line.isEmpty());
+        }
+        return first;
+    }
+    
+    /**
+     * Print the results, and write them to the --out file if any.
+     * @return false if a gate failed
+     */
+    private boolean report() throws IOException {
+        List<String> rows = new ArrayList<>();
+        rows.add("command,count,errors,ops_per_second,mean_ms,p50_ms,p99_ms,p999_ms,max_ms");
+        System.out.println(String.format("%d clients, %d s, think %d ms, mix %d,%d,%d,%d against %s",
+                clients, seconds, thinkMillis, mix[0], mix[1], mix[2], mix[3], target));
+        System.out.println(String.format("%-8s %10s %8s %10s %9s %9s %9s %9s %9s",
+                "command", "count", "errors", "ops/s", "mean ms", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+        LatencyHistogram all = new LatencyHistogram();
+        long allCount = 0;
+        long allErrors = 0;
+        boolean passed = true;
+        for (int k = 0; k <= COMMANDS.length; k++) {
+            boolean total = k == COMMANDS.length;
+            LatencyHistogram histogram = total ? all : latencies[k];
+            long count = total ? allCount : done[k].get();
+            long errorCount = total ? allErrors + connectErrors.get() : errors[k].get();
+            String name = total ? "all" : COMMANDS[k];
+            double[] millis = {histogram.mean() / 1e6, histogram.percentile(0.5) / 1e6,
+                histogram.percentile(0.99) / 1e6, histogram.percentile(0.999) / 1e6, histogram.max() / 1e6};
+            double perSecond = (double) count / seconds;
+            System.out.println(String.format("%-8s %10d %8d %10.0f %9.3f %9.3f %9.3f %9.3f %9.3f",
+                    name, count, errorCount, perSecond, millis[0], millis[1], millis[2], millis[3], millis[4]));
+            rows.add(String.format(Locale.ROOT, "%s,%d,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f",
+                    name, count, errorCount, perSecond, millis[0], millis[1], millis[2], millis[3], millis[4]));
+            if (!total) {
+                all.add(histogram);
+                allCount += count;
+                allErrors += errorCount;
+                if (millis[2] > maxP99Millis) {
+                    System.out.println("FAILED: " + name + " p99 above " + maxP99Millis + " ms");
+                    passed = false;
+                }
+            }
+        }
+        System.out.println("booms: " + booms.get() + ", connection errors: " + connectErrors.get());
+        long totalErrors = allErrors + connectErrors.get();
+        if (maxErrors >= 0 && totalErrors > maxErrors) {
+            System.out.println("FAILED: " + totalErrors + " errors, at most " + maxErrors + " allowed");
+            passed = false;
+        }
+        if (out != null) {
+            try (PrintWriter file = new PrintWriter(new FileWriter(out))) {
+                for (String row : rows) file.println(row);
+            }
+        }
+        return passed;
+    }
+    
+}
@@ -4,7 +4,11 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Multiplayer Minesweeper server.
@@ -12,8 +16,9 @@ import java.util.*;
 public class MinesweeperServer {
 
     // System thread safety argument
-    //   This system is thread safe, multiple client sockets share a mutable board object, 
-    //   but every operation chang the board's rep is a synchronized method.
+    //   This system is thread safe, multiple client sockets share mutable board objects, 
+    //   but every operation chang a board's rep holds the board locks of the rows it touches.
+    //   A client's commands run one after the other on the shard executor of its game.
 
     /** Default server port. */
     private static final int DEFAULT_PORT = 4444;
@@ -21,18 +26,42 @@ public class MinesweeperServer {
     private static final int MAXIMUM_PORT = 65535;
     /** Default square board size. */
     private static final int DEFAULT_SIZE = 10;
-    /** The only one game board **/
-    private static Board board;
+    /** Hosted games, clients start in the default game **/
+    private static GameRegistry games;
+    /** Largest board a client may create **/
+    private static int maxNewGameCells = new ServerConfig().maxNewGameCells;
+    /** Where the snapshot command writes, null if disabled **/
+    private static File snapshotDir;
+    /** Journal of the default game, null if not journaled **/
+    private static MoveJournal journal;
+    /** Who is let in and how fast they may go **/
+    private static AdmissionControl admission = new AdmissionControl(Integer.MAX_VALUE, 0, 0, 0);
     /** Terminated signal **/
     private static final String TERMINATED_SIGNAL = "TERM";
     private static final String DUG_BOOM_MESSAGE = "BOOM!";
+    /** Separates the moves of a batch **/
+    private static final char BATCH_SEPARATOR = ';';
+    /** Commands a batch may hold **/
+    private static final Set<Command.Op> BATCH_MOVES = EnumSet.of(Command.Op.DIG, Command.Op.FLAG, Command.Op.DEFLAG);
+    /** Commands spectators may not use, they would look at or play the board **/
+    private static final Set<Command.Op> PLAYER_ONLY = EnumSet.of(Command.Op.LOOK, Command.Op.WATCH,
+            Command.Op.BIND, Command.Op.SNAPSHOT, Command.Op.HINT, Command.Op.DIG, Command.Op.FLAG, Command.Op.DEFLAG);
+    private static final String SPECTATING_MESSAGE = "You are spectating, type \"unspectate\" to play";
+    private static final String BUSY_MESSAGE = "Server full, try again later";
+    private static final String THROTTLED_MESSAGE = "Too many requests, slow down";
+    /** Squares looked at or revealed worth one token, on top of the token every request costs **/
+    private static final double SQUARES_PER_TOKEN = 1024;
+    /** Longest a request is delayed for its client's rate, a request that would wait longer is refused **/
+    private static final long MAX_THROTTLE_NANOS = TimeUnit.SECONDS.toNanos(5);
     /** Socket for receiving incoming connections. */
-    private final ServerSocket serverSocket;
+    private final ServerSocketChannel serverSocket;
+    /** Serves the client connections **/
+    private final ConnectionEngine engine;
     /** True if the server should *not* disconnect a client after a BOOM message. */
     private final boolean debug;
     
-    /** Client count **/
-    private static int count = 0;
+    /** Connection gauge, request latencies and other counters **/
+    private static final ServerMetrics metrics = ServerMetrics.INSTANCE;
 
     // Abstraction function: 
     //      Represent a minesweeperServer can maintain multiple client connections simultaneously to paly the minesweeper game.
@@ -52,50 +81,22 @@ public class MinesweeperServer {
      * @throws IOException if an error occurs opening the server socket
      */
     public MinesweeperServer(int port, boolean debug) throws IOException {
-        serverSocket = new ServerSocket(port);
-        this.debug = debug;
+        this(port, debug, ConnectionEngine.forName(ConnectionEngine.THREAD));
     }
     
-    class MinesweeperServerThread extends Thread{
-        private final Socket socket;
-        
-        // Abstraction function: 
-        //      Represent a minesweeperServerThread with a client socket
-        
-        // Rep invariant:
-        //       socket != null
-        
-        // Rep exposure
-        //      All fields are private socket can not be modified;
-        
-        /**
-         * Make a MinesweeperServerThread with a client socket;
-         * @param client socket
-         */
-        public MinesweeperServerThread(Socket socket) {
-            MinesweeperServer.count++;
-            this.socket = socket;
-        }
-        
-        /**
-         * make this thread to run
-         */
-        public void run() {
-            try {
-                handleConnection(socket);
-            } catch (IOException ioe) {
-                ioe.printStackTrace();
-            } 
-            finally {
-              try {
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                count--;
-            }
-          }
-        }
+    /**
+     * Make a MinesweeperServer that listens for connections on port.
+     * 
+     * @param port port number, requires 0 <= port <= 65535
+     * @param debug debug mode flag
+     * @param engine serving the client connections
+     * @throws IOException if an error occurs opening the server socket
+     */
+    public MinesweeperServer(int port, boolean debug, ConnectionEngine engine) throws IOException {
+        serverSocket = ServerSocketChannel.open();
+        serverSocket.bind(new InetSocketAddress(port));
+        this.debug = debug;
+        this.engine = engine;
     }
 
     /**
@@ -106,107 +107,491 @@ public class MinesweeperServer {
      *                     (IOExceptions from individual clients do *not* terminate serve())
      */
     public void serve() throws IOException {
-        while (true) {
-            new MinesweeperServerThread(serverSocket.accept()).start();
-            // block until a client connects
-//            Socket socket = serverSocket.accept();
-//
-//            // handle the client
-//            try {
-//                handleConnection(socket);
-//            } catch (IOException ioe) {
-//                ioe.printStackTrace(); // but don't terminate serve()
-//            } finally {
-//                socket.close();
-//            }
+        engine.serve(serverSocket, this);
+    }
+    
+    /** @return the port the server listens on, useful when it was made with port 0 **/
+    public int getPort() {
+        return serverSocket.socket().getLocalPort();
+    }
+    
+    /**
+     * Called by the engine when a client connects, greets the client once admitted.
+     * A client waiting for a place is told so, and its lines are handled once it is admitted.
+     * A client turned away is told so and disconnected.
+     * @param session of the new client
+     */
+    void connected(Session session) {
+        metrics.connected();
+        CompletableFuture<Void> admitted = admission.admit(session);
+        if (admitted == null) {
+            metrics.rejected();
+            session.send(BUSY_MESSAGE);
+            session.close();
+            return;
         }
+        if ( ! admitted.isDone()) {
+            session.send("Server full, " + admission.getWaiting() + " clients waiting including you");
+        }
+        session.tail = admitted.thenRun(() -> {
+            session.bucket = admission.bucket();
+            Game game = games.getDefault();
+            game.join(session);
+            session.game = game;
+            session.send(hello(game));
+        });
     }
-
+    
+    /**
+     * Called by the engine for each line a client sends, replies to the client.
+     * The line is handled on the shard of the client's game, after the client's previous lines,
+     * and once the client's rate allows it.
+     * 
+     * @param session of the client
+     * @param line the client sent, without line separator
+     * @return completed once the reply is sent
+     */
+    CompletableFuture<Void> received(Session session, String line) {
+        session.tail = session.tail.thenCompose(done -> schedule(session, line));
+        return session.tail;
+    }
+    
+    /**
+     * Handle a line on the shard of the client's game, now, or later without holding the shard
+     * if the client's requests so far overspent its tokens. A line that would wait too long is refused.
+     * 
+     * @param session of the client
+     * @param line the client sent
+     * @return completed once the reply is sent
+     */
+    private CompletableFuture<Void> schedule(Session session, String line) {
+        if ( ! session.isOpen()) return CompletableFuture.completedFuture(null);
+        Executor shard = session.game.getShard();
+        long delay = session.bucket == null ? 0 : session.bucket.delayNanos();
+        if (delay > MAX_THROTTLE_NANOS) {
+            metrics.refused();
+            session.send(THROTTLED_MESSAGE);
+            metrics.responded(THROTTLED_MESSAGE.length() + 1);
+            return CompletableFuture.completedFuture(null);
+        }
+        if (delay > 0) {
+            metrics.throttled();
+            shard = CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, shard);
+        }
+        return CompletableFuture.supplyAsync(() -> respond(session, line), shard).thenCompose(sent -> sent);
+    }
+    
     /**
-     * Handle a single client connection. Returns when client disconnects.
+     * Handle a line and send the reply.
+     * On a journaled game the reply waits until the moves it may show are on disk,
+     * without holding the shard meanwhile.
      * 
-     * @param socket socket where the client is connected
-     * @throws IOException if the connection encounters an error or terminates unexpectedly
+     * @param session of the client
+     * @param line the client sent
+     * @return completed once the reply is sent
      */
-    private void handleConnection(Socket socket) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-        out.println(hello());
+    private CompletableFuture<Void> respond(Session session, String line) {
+        if ( ! session.isOpen()) return CompletableFuture.completedFuture(null);
         try {
-            for (String line = in.readLine(); line != null; line = in.readLine()) {
-                String output = handleRequest(line);
-                if (output != TERMINATED_SIGNAL) {
-                    out.println(output);
-                } else {
-                    out.println(DUG_BOOM_MESSAGE);
-                    out.close();
-                    in.close();
-                    socket.close();
-                }
+            session.game.touch();
+            Board board = session.game.getBoard();
+            String output = handleRequest(session, line);
+            if (session.bucket != null) session.bucket.take(1 + session.squares / SQUARES_PER_TOKEN);
+            if (journal == null || journal.getBoard() != board) {
+                reply(session, output);
+                return CompletableFuture.completedFuture(null);
             }
-        } finally {
-            out.close();
-            in.close();
+            return journal.sync().handle((done, failure) -> {
+                if (failure != null) session.close();
+                else reply(session, output);
+                return null;
+            });
+        } catch (RuntimeException re) {
+            re.printStackTrace(); // but don't stop the shard
+            session.close();
+            return CompletableFuture.completedFuture(null);
         }
     }
+    
+    /** Send the output of handleRequest, then the board frame of a binary client **/
+    private static void reply(Session session, String output) {
+        byte[] frame = session.frame;
+        session.frame = null;
+        if (output != TERMINATED_SIGNAL) {
+            if (output != null && (frame == null || ! output.isEmpty())) {
+                session.send(output);
+                metrics.responded(output.length() + 1);
+            }
+            if (frame != null) {
+                session.send(frame);
+                metrics.responded(frame.length);
+            }
+        } else {
+            session.send(DUG_BOOM_MESSAGE);
+            metrics.responded(DUG_BOOM_MESSAGE.length() + 1);
+            session.close();
+        }
+    }
+    
+    /**
+     * Called by the engine once when a client connection is closed, by either side.
+     * @param session of the client
+     */
+    void disconnected(Session session) {
+        metrics.disconnected();
+        if (admission.withdraw(session)) return;
+        // the place is given to the next client once this one has left its game
+        session.tail = session.tail.thenRun(() -> {
+            session.game.leave(session);
+            admission.release(session);
+        });
+    }
 
     /**
      * Handler for client input, performing requested operations and returning an output message.
      * 
+     * @param session of the client
      * @param input message from client
      * @return message to client, or null if none
      */
-    private String handleRequest(String input) {
-        String regex = "(look)|(help)|(bye)|(hello)|"
-                     + "(dig -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|(deflag -?\\d+ -?\\d+)";
-        if ( ! input.matches(regex)) {
+    String handleRequest(Session session, String input) {
+        long start = System.nanoTime();
+        session.squares = 0;
+        int kind;
+        String output;
+        if (input.indexOf(BATCH_SEPARATOR) >= 0) {
+            kind = ServerMetrics.BATCH;
+            output = session.spectating ? SPECTATING_MESSAGE : handleBatch(session, input);
+        } else if ( ! session.command.parse(input)) {
             // invalid input
-            return "Invalid input, please try again";
+            kind = ServerMetrics.INVALID;
+            output = "Invalid input, please try again";
+        } else {
+            kind = session.command.op().ordinal();
+            output = handleCommand(session, session.command);
         }
-        String[] tokens = input.split(" ");
-        if (tokens[0].equals("look")) {
-            // 'look' request
-            return board.lookBoard();
-        } else if (tokens[0].equals("help")) {
+        metrics.requestHandled(kind, System.nanoTime() - start);
+        return output;
+    }
+    
+    /**
+     * Perform a parsed command.
+     * @param session of the client
+     * @param command parsed from the client's line
+     * @return message to client
+     */
+    private String handleCommand(Session session, Command command) {
+        Board board = session.game.getBoard();
+        if (session.spectating && PLAYER_ONLY.contains(command.op())) return SPECTATING_MESSAGE;
+        switch (command.op()) {
+        case LOOK:
+            // 'look' or 'look x y w h' request
+            if (command.argc() == 0) return look(session, board);
+            return look(session, board, command.arg(0), command.arg(1), command.arg(2), command.arg(3));
+        case HELP:
             // 'help' request
-            return "Type \"look\" to look the game board\n"
+            return "Type \"look\" to look the game board, \"look x y w h\" to look w columns by h rows from x y\n"
+                    + "Type \"hello 1\" to be replied binary frames, \"hello 0\" for text again\n"
                     + "Type \"dig x y\" to dig a square\n"
                     + "Type \"flag x y\" to flag a square\n"
                     + "Type \"deflag x y\" to deflag a square\n"
+                    + "Type \"bind\" to be replied the last part looked at after each move, \"unbind\" for the whole board\n"
+                    + "Type \"watch\" to be sent the squares other players change, \"unwatch\" to stop\n"
+                    + "Type \"spectate\" to follow every move instead of playing, \"spectate n\" from move n, \"unspectate\" to play\n"
+                    + "Type \"games\" to list the games, \"join id\" to play another one\n"
+                    + "Type \"new x y\" to start and join a new game of x rows by y columns\n"
+                    + "Type \"snapshot\" to save this game to a file the server can be started from\n"
+                    + "Type \"status\" to see how far the game is\n"
+                    + "Type \"hint\" to be told which squares next to dug ones are safe, booms, or how likely booms,"
+                    + " \"hint x y w h\" for w columns by h rows from x y\n"
+                    + "Type \"stats\" to see the server's counters and latencies\n"
+                    + "Type several dig, flag and deflag separated by \"" + BATCH_SEPARATOR + "\" to play them at once\n"
                     + "Type \"bye\" to end this game";
-        } else if (tokens[0].equals("bye")) {
+        case BYE:
             // 'bye' request
             return TERMINATED_SIGNAL;
-        } else if (tokens[0].equals("hello")) {
-            return hello();
-        } else {
-            int x = Integer.parseInt(tokens[1]);
-            int y = Integer.parseInt(tokens[2]);
-            if (tokens[0].equals("dig")) {
-                // 'dig x y' request
-                if (board.dig(x, y)) {
-                    if (debug) return DUG_BOOM_MESSAGE;
-                    else return TERMINATED_SIGNAL;
-                } else {
-                    return board.lookBoard();
+        case HELLO:
+            if (command.argc() == 0) return hello(session.game);
+            if (command.arg(0) != 0 && command.arg(0) != 1) return "Unknown protocol, 0 is text and 1 binary";
+            // the reply is the last message of the former protocol
+            session.switchProtocol(command.arg(0) == 1, hello(session.game));
+            return null;
+        case WATCH:
+            session.game.getWatch().watch(session);
+            return "watching";
+        case UNWATCH:
+            session.game.getWatch().unwatch(session);
+            return "not watching";
+        case SPECTATE:
+            if (session.spectating) return "Already spectating, type \"unspectate\" to play";
+            if ( ! session.game.spectate(session, command.argc() == 0 ? -1 : command.arg(0))) {
+                return "This game can not be spectated";
+            }
+            session.spectating = true;
+            session.viewBound = false;
+            // the snapshot or the replay follows from the game's spectator feed
+            return null;
+        case UNSPECTATE:
+            if ( ! session.spectating) return "Not spectating";
+            session.spectating = false;
+            if ( ! session.game.play(session)) return join(session, games.getDefault());
+            return hello(session.game);
+        case GAMES:
+            StringBuilder list = new StringBuilder();
+            for (Game game : games.list()) {
+                if (list.length() > 0) list.append('\n');
+                list.append(game);
+            }
+            return list.toString();
+        case JOIN:
+            return join(session, games.get(command.arg(0)));
+        case NEW:
+            int sizeX = command.arg(0);
+            int sizeY = command.arg(1);
+            if (sizeX <= 0 || sizeY <= 0 || (long) sizeX * sizeY > maxNewGameCells) {
+                return "Board size must be positive and at most " + maxNewGameCells + " squares";
+            }
+            return join(session, games.create(sizeX, sizeY));
+        case SNAPSHOT:
+            return snapshot(session.game);
+        case STATS:
+            return metrics.getReport();
+        case STATUS:
+            return status(board);
+        case HINT:
+            if ((long) board.getRowNum() * board.getColNum() > Board.MAX_LOOK_CELLS) return "This game is too large for hints";
+            if (command.argc() == 0) return session.game.getHints().hint(session, 0, 0, board.getColNum(), board.getRowNum());
+            if (command.arg(2) <= 0 || command.arg(3) <= 0) return "Viewport size must be positive";
+            return session.game.getHints().hint(session, command.arg(0), command.arg(1), command.arg(2), command.arg(3));
+        case BIND:
+            if (session.viewWidth == 0) return "No part looked at yet, type \"look x y w h\" first";
+            session.viewBound = true;
+            return "bound to " + session.viewWidth + " columns by " + session.viewHeight + " rows from "
+                    + session.viewX + " " + session.viewY;
+        case UNBIND:
+            session.viewBound = false;
+            return "unbound";
+        case DIG:
+            // 'dig x y' request
+            int revealed = board.digAndReveal(command.arg(0), command.arg(1));
+            session.squares += Math.abs(revealed);
+            if (revealed < 0) {
+                if (debug) return DUG_BOOM_MESSAGE;
+                else return TERMINATED_SIGNAL;
+            } else {
+                return view(session, board);
+            }
+        case FLAG:
+            // 'flag x y' request
+            board.flag(command.arg(0), command.arg(1));
+            return view(session, board);
+        case DEFLAG:
+            // 'deflag x y' request
+            board.deflag(command.arg(0), command.arg(1));
+            return view(session, board);
+        default:
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    /**
+     * Look at part of a board, and remember it as the part move replies show once bound.
+     * @param session of the client
+     * @param board of the client's game
+     * @param x the num of the first col shown
+     * @param y the num of the first row shown
+     * @param w number of cols shown
+     * @param h number of rows shown
+     * @return message to client
+     */
+    private static String look(Session session, Board board, int x, int y, int w, int h) {
+        if (w <= 0 || h <= 0 || (long) w * h > Board.MAX_LOOK_CELLS) {
+            return "Viewport size must be positive and at most " + Board.MAX_LOOK_CELLS + " squares";
+        }
+        session.viewX = x;
+        session.viewY = y;
+        session.viewWidth = w;
+        session.viewHeight = h;
+        looked(session, board, x, y, w, h);
+        if (session.isBinary()) return frame(session, x, y, w, h);
+        return board.lookViewport(x, y, w, h);
+    }
+    
+    /**
+     * Look at the whole board.
+     * @param session of the client
+     * @param board of the client's game
+     * @return message to client
+     */
+    private static String look(Session session, Board board) {
+        if ((long) board.getRowNum() * board.getColNum() > Board.MAX_LOOK_CELLS) return Board.TOO_LARGE_TO_LOOK;
+        looked(session, board, 0, 0, board.getColNum(), board.getRowNum());
+        if ( ! session.isBinary()) return board.lookBoard();
+        return frame(session, 0, 0, board.getColNum(), board.getRowNum());
+    }
+    
+    /**
+     * Count the squares of the board shown by the part from x y, as looked at by the request being handled.
+     * @param session of the client
+     * @param board of the client's game
+     * @param x the num of the first col shown
+     * @param y the num of the first row shown
+     * @param w number of cols shown, > 0
+     * @param h number of rows shown, > 0
+     */
+    private static void looked(Session session, Board board, int x, int y, int w, int h) {
+        long cols = Math.min((long) x + w, board.getColNum()) - Math.max(x, 0);
+        long rows = Math.min((long) y + h, board.getRowNum()) - Math.max(y, 0);
+        if (cols > 0 && rows > 0) session.squares += cols * rows;
+    }
+    
+    /**
+     * Make the board frame of a binary client's reply, see BoardFrames.
+     * @param session of the client
+     * @param x the num of the first col shown
+     * @param y the num of the first row shown
+     * @param w number of cols shown
+     * @param h number of rows shown
+     * @return the empty text, the frame is sent after it
+     */
+    private static String frame(Session session, int x, int y, int w, int h) {
+        session.frame = session.game.getFrames().frame(session, x, y, w, h);
+        return "";
+    }
+    
+    /**
+     * Board shown after a move: the bound viewport of the session, else the whole board.
+     * @param session of the client
+     * @param board of the client's game
+     * @return message to client
+     */
+    private static String view(Session session, Board board) {
+        if ( ! session.viewBound) return look(session, board);
+        looked(session, board, session.viewX, session.viewY, session.viewWidth, session.viewHeight);
+        if (session.isBinary()) return frame(session, session.viewX, session.viewY, session.viewWidth, session.viewHeight);
+        return board.lookViewport(session.viewX, session.viewY, session.viewWidth, session.viewHeight);
+    }
+    
+    /**
+     * Status of a board, from its counters.
+     * @param board of the client's game
+     * @return message to client
+     */
+    private static String status(Board board) {
+        long hidden = board.getHiddenSafeCount(), booms = board.getBoomCount();
+        return "Status: " + (hidden < 0 ? "unknown" : Long.toString(hidden)) + " safe squares hidden, "
+                + (booms < 0 ? "unknown" : Long.toString(booms)) + " booms left, "
+                + board.getFlagCount() + " flagged, " + board.getDugCount() + " dug"
+                + (board.isWon() ? ", game won" : "");
+    }
+    
+    /**
+     * Save a game in the binary board format, see BoardFile.
+     * @param game to save
+     * @return message to client
+     */
+    private static String snapshot(Game game) {
+        if (snapshotDir == null) return "Snapshots are disabled";
+        File file = new File(snapshotDir, "game-" + game.getId() + "-" + System.currentTimeMillis() + ".mswb");
+        try {
+            game.getBoard().snapshot(file);
+        } catch (UnsupportedOperationException uoe) {
+            return "This game can not be saved";
+        } catch (IOException ioe) {
+            return "Snapshot failed: " + ioe.getMessage();
+        }
+        return "snapshot " + file.getName();
+    }
+    
+    /**
+     * Move a client to another game.
+     * @param session of the client
+     * @param game to join, may be null
+     * @return message to client
+     */
+    private String join(Session session, Game game) {
+        if (game == null || (game != session.game && ! game.join(session))) return "No such game";
+        if (game != session.game) {
+            session.game.leave(session);
+            session.game = game;
+            session.spectating = false;
+        }
+        return hello(game);
+    }
+    
+    /**
+     * Handler for a batch of moves, played in order with no other player's move in between.
+     * Replies one status line per move, then the board once. A boom stops the batch:
+     * the following moves are skipped, and the client is disconnected unless in debug mode.
+     * 
+     * @param session of the client
+     * @param input dig, flag and deflag commands separated by BATCH_SEPARATOR
+     * @return message to client
+     */
+    private String handleBatch(Session session, String input) {
+        // cut the moves as split(..) and trim() would, without copying them: move k is input[bounds[2k]..bounds[2k+1])
+        int end = input.length();
+        while (end > 0 && input.charAt(end - 1) == BATCH_SEPARATOR) end--;
+        int separators = 0;
+        for (int i = 0; i < end; i++) {
+            if (input.charAt(i) == BATCH_SEPARATOR) separators++;
+        }
+        int[] bounds = new int[end == 0 ? 0 : 2 * (separators + 1)];
+        Command move = session.command;
+        for (int k = 0, from = 0; from < end; k += 2) {
+            int to = input.indexOf(BATCH_SEPARATOR, from);
+            if (to < 0 || to > end) to = end;
+            int next = to + 1;
+            while (from < to && input.charAt(from) <= ' ') from++;
+            while (to > from && input.charAt(to - 1) <= ' ') to--;
+            if ( ! move.parse(input, from, to) || ! BATCH_MOVES.contains(move.op()) || move.argc() != 2) {
+                // invalid input
+                return "Invalid input, please try again";
+            }
+            bounds[k] = from;
+            bounds[k + 1] = to;
+            from = next;
+        }
+        Board board = session.game.getBoard();
+        StringBuilder output = new StringBuilder();
+        boolean boom = board.exclusive(() -> {
+            for (int k = 0; k < bounds.length; k += 2) {
+                move.parse(input, bounds[k], bounds[k + 1]);
+                output.append(input, bounds[k], bounds[k + 1]).append(": ");
+                if (move.op() == Command.Op.DIG) {
+                    int revealed = board.digAndReveal(move.arg(0), move.arg(1));
+                    session.squares += Math.abs(revealed);
+                    if (revealed < 0) {
+                        output.append(DUG_BOOM_MESSAGE).append('\n');
+                        for (k += 2; k < bounds.length; k += 2) {
+                            output.append(input, bounds[k], bounds[k + 1]).append(": skipped\n");
+                        }
+                        if (debug) output.append(view(session, board));
+                        return true;
+                    }
+                    output.append("dug ").append(revealed).append('\n');
+                } else if (move.op() == Command.Op.FLAG) {
+                    board.flag(move.arg(0), move.arg(1));
+                    output.append("ok\n");
+                } else if (move.op() == Command.Op.DEFLAG) {
+                    board.deflag(move.arg(0), move.arg(1));
+                    output.append("ok\n");
                 }
-
-            } else if (tokens[0].equals("flag")) {
-                // 'flag x y' request
-                board.flag(x, y);
-                return board.lookBoard();
-            } else if (tokens[0].equals("deflag")) {
-                // 'deflag x y' request
-                board.deflag(x, y);
-                return board.lookBoard();
             }
+            output.append(view(session, board));
+            return false;
+        });
+        if (boom && !debug) {
+            session.send(output.substring(0, output.length() - 1));
+            return TERMINATED_SIGNAL;
         }
-        throw new UnsupportedOperationException();
+        return output.toString();
     }
     
-    /** Return the hello message */
-    private String hello() {
-        return "Welcome to Minesweeper. Players : " + count + " including you. Board: "
+    /** Return the hello message of a game */
+    private String hello(Game game) {
+        Board board = game.getBoard();
+        return "Welcome to Minesweeper. Players : " + board.getPlayerCount() + " including you. Board: "
                 + board.getColNum() + " columns by " + board.getRowNum() + " rows. Type 'help' for help.";
     }
 
@@ -215,6 +600,11 @@ public class MinesweeperServer {
      * 
      * <br> Usage:
      *      MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]
+     *                        [--stripe ROWS] [--engine thread | virtual | nio] [--shards N] [--shard-threads N]
+     *                        [--game-idle SECONDS]
+     *                        [--chunked] [--seed SEED] [--snapshots DIR] [--journal JOURNAL]
+     *                        [--max-backlog BYTES] [--max-stall MILLIS]
+     *                        [--max-connections N] [--max-waiting N] [--rate TOKENS] [--burst TOKENS]
      * 
      * <br> The --debug argument means the server should run in debug mode. The server should disconnect a
      *      client after a BOOM message if and only if the --debug flag was NOT given.
@@ -247,9 +637,62 @@ public class MinesweeperServer {
      *   NEWLINE ::= "\n" | "\r" "\n"?
      *   INT ::= [0-9]+
      * </pre>
+     * <br> FILE may also be in the binary format of BoardFile, such as a file written by the snapshot command,
+     *      which is recognized by its first bytes and resumes the saved game.
      * 
      * <br> If neither --file nor --size is given, generate a random board of size 10x10.
      * 
+     * <br> ROWS is an optional positive integer, the board is then locked in stripes of ROWS rows so players in
+     *      different parts of the board can play in parallel. By default the whole board is a single stripe.
+     * <br> E.g. "MinesweeperServer --size 1000,1000 --stripe 32" locks a 1000*1000 board in 32 rows stripes.
+     * 
+     * <br> The --engine argument chooses how client connections are served: "thread" (the default) runs a
+     *      thread per client, "virtual" a virtual thread per client (Java 21 or later), and "nio" serves all
+     *      clients from a single non-blocking event loop. The protocol is the same with every engine.
+     * <br> E.g. "MinesweeperServer --engine nio" serves clients from an event loop.
+     * 
+     * <br> Clients may create more games with the "new" command. Games are spread over N shard executors,
+     *      by default one per core, of --shard-threads threads each, 4 by default. The threads of a shard run
+     *      moves of the same game in parallel on different stripes, and keep its other games going while one
+     *      command is slow, a large look or a hint; fewer threads bound better what one busy shard takes from
+     *      the others. A game other than the starting board is removed once it had no players for SECONDS,
+     *      600 by default.
+     * <br> E.g. "MinesweeperServer --shards 4 --shard-threads 8 --game-idle 60" runs games on 4 shards of
+     *      8 threads and drops them after a minute without players.
+     * 
+     * <br> The --chunked argument makes the random board of --size lazily generated: its squares are only
+     *      stored, in chunks, once played, so the board may be far larger than memory.
+     * <br> E.g. "MinesweeperServer --size 1000000,1000000 --chunked" starts a board of 10^12 squares.
+     * 
+     * <br> SEED is an optional integer, the random board of --size is then the same every time with the same SEED.
+     * <br> E.g. "MinesweeperServer --size 20000,20000 --seed 42" starts the same 20000*20000 board every time.
+     * 
+     * <br> DIR is an optional directory where the "snapshot" command saves games. Snapshots are disabled without it.
+     * <br> E.g. "MinesweeperServer --snapshots saves" then "MinesweeperServer --file saves/game-0-1508000000000.mswb"
+     *      resumes a saved game.
+     * 
+     * <br> JOURNAL is an optional directory where every move of the default game is journaled, see MoveJournal.
+     *      If it already holds a game, that game is resumed and --file and --size are ignored, otherwise
+     *      the starting board is saved there first. Replies to moves are sent once the moves are on disk.
+     *      --journal can not be combined with --chunked.
+     * <br> E.g. "MinesweeperServer --size 100,100 --journal game" starts a 100*100 game, and the same command
+     *      after a crash resumes it.
+     * 
+     * <br> BYTES and MILLIS are optional positive limits of the output queued for each client: a client with more
+     *      than BYTES bytes queued and not yet written, 64 MB by default, or whose queued output was not written
+     *      for MILLIS milliseconds, 30 seconds by default, reads too slowly and is disconnected.
+     * <br> E.g. "MinesweeperServer --max-backlog 1000000 --max-stall 5000" disconnects clients 1 MB or 5 s behind.
+     * 
+     * <br> --max-connections N is an optional positive number of clients served at once, unlimited by default.
+     *      The next clients, up to --max-waiting N, 0 by default, wait in line for a place and are told so,
+     *      the others are told the server is full and disconnected, see AdmissionControl.
+     * <br> TOKENS after --rate is an optional positive number of tokens each client earns per second, requests are
+     *      not limited by default. A request costs one token, plus one per 1024 squares it looked at or revealed.
+     *      A client out of tokens has its next requests delayed until it earned them back, or refused if that
+     *      takes more than 5 seconds. TOKENS after --burst is the most tokens a client saves up, the rate by default.
+     * <br> E.g. "MinesweeperServer --max-connections 1000 --max-waiting 100 --rate 20 --burst 100" serves 1000 clients,
+     *      each sending 20 cheap requests per second or 100 at once.
+     * 
      * <br> Note that --file and --size may not be specified simultaneously.
      * 
      * @param args arguments as described
@@ -261,6 +704,7 @@ public class MinesweeperServer {
         int sizeX = DEFAULT_SIZE;
         int sizeY = DEFAULT_SIZE;
         Optional<File> file = Optional.empty();
+        ServerConfig config = new ServerConfig();
 
         Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
         try {
@@ -288,6 +732,70 @@ public class MinesweeperServer {
                         if ( ! file.get().isFile()) {
                             throw new IllegalArgumentException("file not found: \"" + file.get() + "\"");
                         }
+                    } else if (flag.equals("--stripe")) {
+                        config.stripeRows = Integer.parseInt(arguments.remove());
+                        if (config.stripeRows <= 0) {
+                            throw new IllegalArgumentException("stripe " + config.stripeRows + " must be positive");
+                        }
+                    } else if (flag.equals("--engine")) {
+                        config.engine = arguments.remove();
+                        ConnectionEngine.forName(config.engine);
+                    } else if (flag.equals("--shards")) {
+                        config.shards = Integer.parseInt(arguments.remove());
+                        if (config.shards <= 0) {
+                            throw new IllegalArgumentException("shards " + config.shards + " must be positive");
+                        }
+                    } else if (flag.equals("--shard-threads")) {
+                        config.shardThreads = Integer.parseInt(arguments.remove());
+                        if (config.shardThreads <= 0) {
+                            throw new IllegalArgumentException("shard threads " + config.shardThreads + " must be positive");
+                        }
+                    } else if (flag.equals("--game-idle")) {
+                        config.gameIdleSeconds = Integer.parseInt(arguments.remove());
+                        if (config.gameIdleSeconds < 0) {
+                            throw new IllegalArgumentException("game idle time " + config.gameIdleSeconds + " is negative");
+                        }
+                    } else if (flag.equals("--chunked")) {
+                        config.chunked = true;
+                    } else if (flag.equals("--seed")) {
+                        config.seed = Long.parseLong(arguments.remove());
+                    } else if (flag.equals("--snapshots")) {
+                        config.snapshotDir = new File(arguments.remove());
+                        if ( ! config.snapshotDir.isDirectory()) {
+                            throw new IllegalArgumentException("directory not found: \"" + config.snapshotDir + "\"");
+                        }
+                    } else if (flag.equals("--journal")) {
+                        config.journalDir = new File(arguments.remove());
+                    } else if (flag.equals("--max-backlog")) {
+                        config.maxBacklogBytes = Long.parseLong(arguments.remove());
+                        if (config.maxBacklogBytes <= 0) {
+                            throw new IllegalArgumentException("max backlog " + config.maxBacklogBytes + " must be positive");
+                        }
+                    } else if (flag.equals("--max-stall")) {
+                        config.maxStallMillis = Long.parseLong(arguments.remove());
+                        if (config.maxStallMillis <= 0) {
+                            throw new IllegalArgumentException("max stall " + config.maxStallMillis + " must be positive");
+                        }
+                    } else if (flag.equals("--max-connections")) {
+                        config.maxConnections = Integer.parseInt(arguments.remove());
+                        if (config.maxConnections <= 0) {
+                            throw new IllegalArgumentException("max connections " + config.maxConnections + " must be positive");
+                        }
+                    } else if (flag.equals("--max-waiting")) {
+                        config.maxWaiting = Integer.parseInt(arguments.remove());
+                        if (config.maxWaiting < 0) {
+                            throw new IllegalArgumentException("max waiting " + config.maxWaiting + " is negative");
+                        }
+                    } else if (flag.equals("--rate")) {
+                        config.requestRate = Double.parseDouble(arguments.remove());
+                        if ( ! (config.requestRate > 0)) {
+                            throw new IllegalArgumentException("rate " + config.requestRate + " must be positive");
+                        }
+                    } else if (flag.equals("--burst")) {
+                        config.requestBurst = Double.parseDouble(arguments.remove());
+                        if ( ! (config.requestBurst > 0)) {
+                            throw new IllegalArgumentException("burst " + config.requestBurst + " must be positive");
+                        }
                     } else {
                         throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
                     }
@@ -297,14 +805,22 @@ public class MinesweeperServer {
                     throw new IllegalArgumentException("unable to parse number for " + flag);
                 }
             }
+            if (config.journalDir != null && config.chunked) {
+                throw new IllegalArgumentException("--journal can not be used with --chunked");
+            }
         } catch (IllegalArgumentException iae) {
             System.err.println(iae.getMessage());
-            System.err.println("usage: MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]");
+            System.err.println("usage: MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]"
+                    + " [--stripe ROWS] [--engine thread | virtual | nio] [--shards N] [--shard-threads N]"
+                    + " [--game-idle SECONDS]"
+                    + " [--chunked] [--seed SEED] [--snapshots DIR] [--journal JOURNAL]"
+                    + " [--max-backlog BYTES] [--max-stall MILLIS]"
+                    + " [--max-connections N] [--max-waiting N] [--rate TOKENS] [--burst TOKENS]");
             return;
         }
 
         try {
-            runMinesweeperServer(debug, file, sizeX, sizeY, port);
+            runMinesweeperServer(debug, file, sizeX, sizeY, port, config);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
@@ -325,16 +841,64 @@ public class MinesweeperServer {
      * @throws IOException if a network error occurs
      */
     public static void runMinesweeperServer(boolean debug, Optional<File> file, int sizeX, int sizeY, int port) throws IOException {
-        
+        runMinesweeperServer(debug, file, sizeX, sizeY, port, new ServerConfig());
+    }
+    
+    /**
+     * Same as runMinesweeperServer(debug, file, sizeX, sizeY, port), with optional settings.
+     * 
+     * @param config optional settings, see main(..)
+     * @throws IOException if a network error occurs
+     */
+    public static void runMinesweeperServer(boolean debug, Optional<File> file, int sizeX, int sizeY, int port,
+            ServerConfig config) throws IOException {
+        MinesweeperServer server = prepareMinesweeperServer(debug, file, sizeX, sizeY, port, config);
+        System.out.println(games.getDefault().getBoard());
+        server.serve();
+    }
+    
+    /**
+     * Same as runMinesweeperServer(debug, file, sizeX, sizeY, port, config), but return the server
+     * listening and ready to serve() instead of serving, e.g. to run it in the same process as its clients.
+     * 
+     * @return the server, listening on getPort()
+     * @throws IOException if the board can not be loaded or a network error occurs
+     */
+    static MinesweeperServer prepareMinesweeperServer(boolean debug, Optional<File> file, int sizeX, int sizeY, int port,
+            ServerConfig config) throws IOException {
+        Board board;
+        if (config.journalDir != null) {
+            journal = MoveJournal.open(config.journalDir, () -> {
+                try {
+                    return startingBoard(file, sizeX, sizeY, config);
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            }, config.stripeRows, config.journalCompactEvery);
+            board = journal.getBoard();
+        } else {
+            board = startingBoard(file, sizeX, sizeY, config);
+        }
+        games = new GameRegistry(board, config.shards, config.shardThreads, config.gameIdleSeconds * 1000L, config.stripeRows);
+        maxNewGameCells = config.maxNewGameCells;
+        snapshotDir = config.snapshotDir;
+        OutputQueue.limit(config.maxBacklogBytes, config.maxStallMillis);
+        admission = new AdmissionControl(config.maxConnections, config.maxWaiting, config.requestRate,
+                config.requestBurst > 0 ? config.requestBurst : config.requestRate);
+        metrics.register();
+        return new MinesweeperServer(port, debug, ConnectionEngine.forName(config.engine));
+    }
+    
+    /** The starting board of runMinesweeperServer **/
+    private static Board startingBoard(Optional<File> file, int sizeX, int sizeY, ServerConfig config) throws IOException {
         if (file.isPresent()) 
-            board = new Board(file.get());
-        else if(sizeX > 0 && sizeY > 0) 
-            board = new Board(sizeX, sizeY);
+            return new Board(file.get(), config.stripeRows);
+        int n = sizeX > 0 && sizeY > 0 ? sizeX : DEFAULT_SIZE;
+        int m = sizeX > 0 && sizeY > 0 ? sizeY : DEFAULT_SIZE;
+        long seed = config.seed != null ? config.seed : new Random().nextLong();
+        if (config.chunked)
+            return Board.chunked(n, m, seed, config.stripeRows);
         else
-            board = new Board(DEFAULT_SIZE, DEFAULT_SIZE);
-        
-        System.out.println(board);
-        MinesweeperServer server = new MinesweeperServer(port, debug);
-        server.serve();
+            return Board.random(n, m, seed, config.stripeRows);
     }
 }
@@ -0,0 +1,365 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Write-ahead journal of the moves applied to a board, so that a game survives the death of its server.
+ * 
+ * The board appends each dig, flag and deflag that changed it, in memory while its stripes are held.
+ * A single writer thread takes everything appended since its last write, writes it with one call and
+ * forces it to disk once: moves of many clients arriving during a write share the next fsync (group commit).
+ * sync() tells when every move appended so far is on disk. No disk write ever happens under a board lock.
+ * 
+ * A journal directory holds:
+ * <pre>
+ *   snapshot-S.mswb     the board after move S, in the binary format of BoardFile
+ *   journal-B.log       moves B+1, B+2, ... as RECORD*
+ *   RECORD ::= SEQ OP X Y       (17 bytes, big endian: long, byte, int, int)
+ * </pre>
+ * Opening the directory loads the latest snapshot and replays the moves after it, up to the first
+ * torn or missing record. Every compactEvery moves the writer starts a new journal file, saves a
+ * snapshot and deletes the files it replaces, so replay stays short.
+ */
+class MoveJournal implements Closeable {
+    
+    /** Ops of a record **/
+    static final byte DIG = 1;
+    static final byte FLAG = 2;
+    static final byte DEFLAG = 3;
+    /** Bytes of a record **/
+    static final int RECORD_SIZE = 17;
+    
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".mswb";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".log";
+    /** Initial size of the append buffers, they grow when a write falls behind **/
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+    
+    private final File dir;
+    private final Board board;
+    /** Moves between two compactions **/
+    private final long compactEvery;
+    private final Thread writer;
+    
+    /** Records appended and not yet taken by the writer **/
+    private ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+    /** Buffer the writer writes from, swapped with pending **/
+    private ByteBuffer writing = ByteBuffer.allocate(BUFFER_SIZE);
+    /** Completed once the records in pending are on disk, null if nobody waits for them **/
+    private CompletableFuture<Void> pendingDone;
+    /** Completed once the records the writer is writing are on disk, null if nobody waits for them **/
+    private CompletableFuture<Void> writingDone;
+    /** Seq of the last appended move **/
+    private long lastSeq;
+    /** Seq of the last move taken by the writer **/
+    private long takenSeq;
+    /** Seq of the last move on disk **/
+    private long durableSeq;
+    /** Why the journal stopped, null while it works **/
+    private IOException failure;
+    private boolean closed;
+    
+    /** Current journal file, only used by the writer thread **/
+    private FileChannel channel;
+    /** Seq of the move before the first one of the current journal file, only used by the writer thread **/
+    private long channelBase;
+    /** Number of fsyncs so far **/
+    private long syncs;
+    
+    // Abstraction function:
+    //      Represent the moves 1..lastSeq applied to board since it was created, moves 1..durableSeq
+    //      of which are in dir, moves takenSeq+1..lastSeq as records in pending
+    //      and moves durableSeq+1..takenSeq as records in writing
+    
+    // Rep invariant:
+    //       durableSeq <= takenSeq <= lastSeq
+    //       pending holds exactly lastSeq - takenSeq records
+    //       writingDone == null if durableSeq == takenSeq
+    //       once failure != null, pending is no longer appended to or written
+    
+    // Rep exposure
+    //      All fields are private, the buffers are never shared
+    
+    // Thread safety
+    //      All fields but channel, channelBase and writing's content are guarded by this,
+    //      which is only ever taken after the board locks, never before.
+    //      channel and channelBase are confined to the writer thread, as is writing between two swaps.
+    
+    private MoveJournal(File dir, Board board, long lastSeq, long compactEvery) {
+        this.dir = dir;
+        this.board = board;
+        this.lastSeq = lastSeq;
+        this.takenSeq = lastSeq;
+        this.durableSeq = lastSeq;
+        this.compactEvery = compactEvery;
+        this.writer = new Thread(this::writeLoop, "move-journal");
+        writer.setDaemon(true);
+    }
+    
+    /**
+     * Open the journal in dir, creating it if needed.
+     * If dir has a snapshot, its board is loaded and the journaled moves replayed over it,
+     * otherwise the board is initial.get() and its first snapshot is saved right away.
+     * 
+     * @param dir journal directory
+     * @param initial board to journal if dir has none yet, must not be chunked
+     * @param stripeRows rows per lock stripe of a loaded board, see Board
+     * @param compactEvery number of moves between two compactions, > 0
+     * @return an open journal, appended to by its board
+     * @throws IOException if dir can not be read or written
+     */
+    static MoveJournal open(File dir, Supplier<Board> initial, int stripeRows, long compactEvery) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("can not create " + dir);
+        long[] snapshots = seqs(dir, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        Board board;
+        long seq;
+        if (snapshots.length > 0) {
+            seq = snapshots[snapshots.length - 1];
+            board = new Board(file(dir, SNAPSHOT_PREFIX, seq, SNAPSHOT_SUFFIX), stripeRows);
+            seq = replay(dir, board, seq);
+        } else {
+            seq = 0;
+            board = initial.get();
+        }
+        MoveJournal journal = new MoveJournal(dir, board, seq, compactEvery);
+        journal.compact();
+        board.setJournal(journal);
+        journal.writer.start();
+        return journal;
+    }
+    
+    /** Apply the moves after seq of every journal file in dir, return the seq of the last one applied **/
+    private static long replay(File dir, Board board, long seq) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        for (long base : seqs(dir, JOURNAL_PREFIX, JOURNAL_SUFFIX)) {
+            if (base > seq) break;
+            try (FileChannel in = FileChannel.open(file(dir, JOURNAL_PREFIX, base, JOURNAL_SUFFIX).toPath(),
+                    StandardOpenOption.READ)) {
+                while (true) {
+                    record.clear();
+                    while (record.hasRemaining() && in.read(record) >= 0) {
+                        // read a whole record
+                    }
+                    if (record.hasRemaining()) break; // end of file, or a torn last record
+                    record.flip();
+                    long recordSeq = record.getLong();
+                    if (recordSeq <= seq) continue;
+                    if (recordSeq != seq + 1) break;
+                    byte op = record.get();
+                    int x = record.getInt();
+                    int y = record.getInt();
+                    if (op == DIG) board.dig(x, y);
+                    else if (op == FLAG) board.flag(x, y);
+                    else if (op == DEFLAG) board.deflag(x, y);
+                    else break;
+                    seq = recordSeq;
+                }
+            }
+        }
+        return seq;
+    }
+    
+    /** The board this journal is appended to **/
+    Board getBoard() {
+        return board;
+    }
+    
+    /**
+     * Append a move, called by the board while it holds the stripes the move changed.
+     * @param op DIG, FLAG or DEFLAG
+     * @param x col of the move
+     * @param y row of the move
+     */
+    synchronized void append(byte op, int x, int y) {
+        if (failure != null) return;
+        if (pending.remaining() < RECORD_SIZE) {
+            pending = ByteBuffer.allocate(pending.capacity() * 2).put(pending.flip());
+        }
+        pending.putLong(++lastSeq).put(op).putInt(x).putInt(y);
+        notify();
+    }
+    
+    /**
+     * @return completed once every move appended so far is on disk,
+     *         or completed exceptionally if the journal failed
+     */
+    synchronized CompletableFuture<Void> sync() {
+        if (failure != null) return CompletableFuture.failedFuture(failure);
+        if (lastSeq == durableSeq) return DONE;
+        if (lastSeq == takenSeq) {
+            if (writingDone == null) writingDone = new CompletableFuture<>();
+            return writingDone;
+        }
+        if (pendingDone == null) pendingDone = new CompletableFuture<>();
+        return pendingDone;
+    }
+    
+    /** Number of fsyncs of journal files so far **/
+    synchronized long getSyncs() {
+        return syncs;
+    }
+    
+    /** Seq of the last appended move **/
+    synchronized long getLastSeq() {
+        return lastSeq;
+    }
+    
+    /**
+     * Stop journaling: write what was appended, then stop the writer thread.
+     * The board is no longer journaled.
+     */
+    @Override
+    public void close() throws IOException {
+        board.setJournal(null);
+        synchronized (this) {
+            closed = true;
+            notify();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (failure != null) throw failure;
+        }
+    }
+    
+    /** Body of the writer thread **/
+    private void writeLoop() {
+        while (true) {
+            long seq;
+            synchronized (this) {
+                while (pending.position() == 0 && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        closed = true;
+                    }
+                }
+                if (pending.position() == 0 || failure != null) break;
+                ByteBuffer taken = pending;
+                pending = writing;
+                writing = taken;
+                writingDone = pendingDone;
+                pendingDone = null;
+                takenSeq = lastSeq;
+                seq = takenSeq;
+            }
+            try {
+                writing.flip();
+                while (writing.hasRemaining()) {
+                    channel.write(writing);
+                }
+                channel.force(false);
+                writing.clear();
+            } catch (IOException ioe) {
+                fail(ioe);
+                break;
+            }
+            CompletableFuture<Void> done;
+            synchronized (this) {
+                syncs++;
+                durableSeq = seq;
+                done = writingDone;
+                writingDone = null;
+            }
+            if (done != null) done.complete(null);
+            if (seq - channelBase >= compactEvery) {
+                try {
+                    compact();
+                } catch (IOException ioe) {
+                    fail(ioe);
+                    break;
+                }
+            }
+        }
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+    
+    /** Stop the journal after a write failed, telling everybody waiting **/
+    private void fail(IOException error) {
+        error.printStackTrace();
+        CompletableFuture<Void> taken;
+        CompletableFuture<Void> appended;
+        synchronized (this) {
+            failure = error;
+            taken = writingDone;
+            appended = pendingDone;
+            writingDone = null;
+            pendingDone = null;
+        }
+        if (taken != null) taken.completeExceptionally(error);
+        if (appended != null) appended.completeExceptionally(error);
+    }
+    
+    /**
+     * Start a new journal file and save a snapshot of the board,
+     * then delete the snapshots and journal files it replaces.
+     * Called on open and by the writer thread, with every appended move before the new file on disk.
+     */
+    private void compact() throws IOException {
+        long base;
+        synchronized (this) {
+            base = takenSeq;
+        }
+        FileChannel next = FileChannel.open(file(dir, JOURNAL_PREFIX, base, JOURNAL_SUFFIX).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        if (channel != null) channel.close();
+        channel = next;
+        channelBase = base;
+        long[] seq = new long[1];
+        byte[] cells = board.exclusive(() -> {
+            seq[0] = getLastSeq();
+            return board.copyCells();
+        });
+        BoardFile.write(file(dir, SNAPSHOT_PREFIX, seq[0], SNAPSHOT_SUFFIX), board.getRowNum(), board.getColNum(), cells);
+        for (long old : seqs(dir, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (old < seq[0]) file(dir, SNAPSHOT_PREFIX, old, SNAPSHOT_SUFFIX).delete();
+        }
+        for (long old : seqs(dir, JOURNAL_PREFIX, JOURNAL_SUFFIX)) {
+            if (old < base) file(dir, JOURNAL_PREFIX, old, JOURNAL_SUFFIX).delete();
+        }
+    }
+    
+    private static File file(File dir, String prefix, long seq, String suffix) {
+        return new File(dir, prefix + seq + suffix);
+    }
+    
+    /** Sorted seqs of the files of dir named prefix + seq + suffix **/
+    private static long[] seqs(File dir, String prefix, String suffix) throws IOException {
+        String[] names = dir.list();
+        if (names == null) throw new IOException("can not list " + dir);
+        long[] seqs = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (!name.startsWith(prefix) || !name.endsWith(suffix)) continue;
+            try {
+                seqs[count] = Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+                count++;
+            } catch (NumberFormatException nfe) {
+                // not one of ours
+            }
+        }
+        seqs = Arrays.copyOf(seqs, count);
+        Arrays.sort(seqs);
+        return seqs;
+    }
+    
+}
@@ -0,0 +1,293 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Connection engine serving every connection from one selector thread with non-blocking I/O.
+ * Each connection only costs its read buffer and its queue of pending output,
+ * so mostly idle clients are cheap. A connection with MAX_PENDING_LINES lines handed to the server
+ * and not yet replied is not read until they are, so a client sending faster than it is served
+ * is held back by TCP, as with the blocking engines, instead of having its lines queued without bound.
+ */
+public class NioConnectionEngine implements ConnectionEngine {
+    
+    /** Initial size of a connection's read buffer **/
+    private static final int READ_BUFFER_SIZE = 512;
+    /** Longest accepted input line, a client sending longer lines is disconnected **/
+    private static final int MAX_LINE_LENGTH = 1 << 20;
+    /** Lines of a connection handed to the server and not yet replied, past which it is no longer read **/
+    private static final int MAX_PENDING_LINES = 64;
+    
+    /** Selector of the serving thread, null before serve() **/
+    private Selector selector;
+    /** Thread running serve() **/
+    private Thread loop;
+    /** Server called back on connection events **/
+    private MinesweeperServer server;
+    /** Connections with output sent from other threads, to be flushed by the loop **/
+    private final Queue<NioSession> flushing = new ConcurrentLinkedQueue<>();
+    /** Paused connections whose pending lines were replied, to be read again by the loop **/
+    private final Queue<NioSession> resuming = new ConcurrentLinkedQueue<>();
+    
+    // Abstraction function: 
+    //      Represent an event loop engine, each registered channel's attachment is its NioSession
+    
+    // Rep invariant:
+    //       selector, loop and server != null once serve() runs
+    
+    // Thread safety
+    //      Channels and read buffers are only used by the loop thread, 
+    //      a session's output queue is thread safe, flushing and resuming are concurrent queues.
+    
+    @Override
+    public void serve(ServerSocketChannel listener, MinesweeperServer server) throws IOException {
+        this.server = server;
+        selector = Selector.open();
+        loop = Thread.currentThread();
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_ACCEPT);
+        while (true) {
+            selector.select();
+            for (NioSession session = flushing.poll(); session != null; session = flushing.poll()) {
+                flush(session);
+            }
+            for (NioSession session = resuming.poll(); session != null; session = resuming.poll()) {
+                resume(session);
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) accept(listener);
+                    else {
+                        NioSession session = (NioSession) key.attachment();
+                        if (key.isReadable()) read(session);
+                        if (key.isValid() && key.isWritable()) flush(session);
+                    }
+                } catch (IOException ioe) {
+                    ioe.printStackTrace(); // but don't terminate serve()
+                    if (key.attachment() != null) disconnect((NioSession) key.attachment());
+                }
+            }
+        }
+    }
+    
+    private void accept(ServerSocketChannel listener) throws IOException {
+        SocketChannel channel = listener.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        NioSession session = new NioSession(channel);
+        session.key = channel.register(selector, SelectionKey.OP_READ, session);
+        server.connected(session);
+    }
+    
+    /**
+     * Read what the client sent and hand its complete lines to the server.
+     */
+    private void read(NioSession session) throws IOException {
+        int read = session.channel.read(session.in);
+        if (read < 0) {
+            disconnect(session);
+            return;
+        }
+        handleLines(session);
+    }
+    
+    /**
+     * Hand the complete lines read so far to the server, until MAX_PENDING_LINES are not yet replied:
+     * the connection is then paused, no longer read, and the lines left in its buffer wait for resume().
+     */
+    private void handleLines(NioSession session) {
+        ByteBuffer in = session.in;
+        int start = 0;
+        for (int i = 0; i < in.position(); i++) {
+            if (in.get(i) != '\n') continue;
+            int end = i > start && in.get(i - 1) == '\r' ? i - 1 : i;
+            String line = new String(in.array(), start, end - start, StandardCharsets.UTF_8);
+            start = i + 1;
+            CompletableFuture<Void> handled = server.received(session, line);
+            if (!session.isOpen()) return;
+            if (handled.isDone()) {
+                session.pendingLines = 0;
+            } else if (++session.pendingLines >= MAX_PENDING_LINES) {
+                pause(session, handled);
+                break;
+            }
+        }
+        in.limit(in.position()).position(start);
+        in.compact();
+        if (!in.hasRemaining() && !session.paused) {
+            if (in.capacity() >= MAX_LINE_LENGTH) {
+                disconnect(session);
+                return;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(2 * in.capacity());
+            in.flip();
+            session.in = bigger.put(in);
+        }
+    }
+    
+    /**
+     * Stop reading a connection until the last line handed to the server is replied,
+     * and so every line before it.
+     */
+    private void pause(NioSession session, CompletableFuture<Void> handled) {
+        session.paused = true;
+        session.key.interestOps(session.key.interestOps() & ~SelectionKey.OP_READ);
+        handled.whenComplete((done, failure) -> {
+            resuming.add(session);
+            selector.wakeup();
+        });
+    }
+    
+    /**
+     * Hand the lines left in a paused connection's buffer to the server, then read it again
+     * unless that paused it anew.
+     */
+    private void resume(NioSession session) {
+        if (!session.key.isValid()) return;
+        session.paused = false;
+        session.pendingLines = 0;
+        handleLines(session);
+        if (!session.paused && session.key.isValid()) {
+            session.key.interestOps(session.key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+    
+    /**
+     * Write as much pending output as the socket takes, every queued message in one gathering write,
+     * and watch for writability if some is left.
+     */
+    private void flush(NioSession session) {
+        if (!session.key.isValid()) return;
+        try {
+            if (session.aborting()) {
+                disconnect(session);
+                return;
+            }
+            for (byte[] message : session.output.drain()) {
+                session.writing.add(ByteBuffer.wrap(message));
+            }
+            while (!session.writing.isEmpty()) {
+                long written = session.channel.write(session.writing.toArray(new ByteBuffer[0]));
+                session.output.written(written);
+                while (!session.writing.isEmpty() && !session.writing.peek().hasRemaining()) {
+                    session.writing.remove();
+                }
+                if (written == 0) break;
+            }
+            if (!session.writing.isEmpty()) {
+                session.key.interestOps(session.key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            session.key.interestOps(session.key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (session.isOpen() || !session.output.isEmpty()) return;
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        disconnect(session);
+    }
+    
+    /**
+     * Close the connection now, dropping pending output, and tell the server once.
+     */
+    private void disconnect(NioSession session) {
+        synchronized (session) {
+            session.closing = true;
+        }
+        session.output.close();
+        session.writing.clear();
+        if (!session.channel.isOpen()) return;
+        try {
+            session.channel.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        server.disconnected(session);
+    }
+    
+    /**
+     * Session of one non-blocking connection, output is queued and written by the loop thread.
+     */
+    private class NioSession extends Session {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        /** Output taken from the queue, not yet written whole **/
+        private final Queue<ByteBuffer> writing = new ArrayDeque<>();
+        private boolean closing = false;
+        private boolean aborting = false;
+        /** Lines handed to the server since the last one found replied **/
+        private int pendingLines = 0;
+        /** True while not read, until the lines pending are replied **/
+        private boolean paused = false;
+        
+        // Thread safety
+        //      closing and aborting are guarded by this, channel, key, in, writing, pendingLines and paused
+        //      are confined to the loop thread
+        
+        NioSession(SocketChannel channel) {
+            this.channel = channel;
+        }
+        
+        @Override
+        protected void flushSoon() {
+            requestFlush();
+        }
+        
+        @Override
+        public synchronized boolean isOpen() {
+            return !closing;
+        }
+        
+        private synchronized boolean aborting() {
+            return aborting;
+        }
+        
+        @Override
+        public void close() {
+            synchronized (this) {
+                closing = true;
+            }
+            output.close();
+            requestFlush();
+        }
+        
+        @Override
+        public void abort() {
+            synchronized (this) {
+                closing = true;
+                aborting = true;
+            }
+            output.close();
+            requestFlush();
+        }
+        
+        /** Flush now if on the loop thread, else have the loop flush soon **/
+        private void requestFlush() {
+            if (Thread.currentThread() == loop) {
+                flush(this);
+            } else {
+                flushing.add(this);
+                selector.wakeup();
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,136 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded queue of the output of a session, from the threads sending it to the engine writing it.
+ * The engine takes every queued message at once and writes them together, so a burst of messages
+ * costs one write. Nothing queued is dropped for a newer message: every board frame is the reply to
+ * a request of its own, so a client pipelining requests gets one reply each, in order.
+ * A client whose backlog, the bytes sent to it but not yet written, grows past a limit, or is not
+ * written at all for longer than a time limit, is too slow to keep: add(..) refuses and the session is evicted.
+ * A client that stops reading with nothing more sent to it is found by evictIfStalled(..), which the sessions
+ * call periodically.
+ */
+public class OutputQueue {
+    
+    /** Default limits, see limit(..) **/
+    static final long DEFAULT_MAX_BYTES = 64L << 20;
+    static final long DEFAULT_MAX_STALL_MILLIS = 30_000;
+    private static volatile long maxBytes = DEFAULT_MAX_BYTES;
+    private static volatile long maxStallNanos = DEFAULT_MAX_STALL_MILLIS * 1_000_000;
+    
+    private static final ServerMetrics METRICS = ServerMetrics.INSTANCE;
+    
+    /** Queued messages, oldest first **/
+    private final ArrayDeque<byte[]> messages = new ArrayDeque<>();
+    /** Bytes added and not yet written, queued or taken by the engine **/
+    private long backlog = 0;
+    /** System.nanoTime() when backlog last became non-empty or was last written **/
+    private long stalledSince;
+    /** True once closed or over a limit, then nothing more is added **/
+    private boolean closed = false;
+    /** True once over a limit **/
+    private boolean evicted = false;
+    
+    // Abstraction function:
+    //      Represent the messages of a session not yet written, messages queued for the engine
+    //      and backlog - their bytes being written by the engine
+    
+    // Rep invariant:
+    //       backlog >= bytes of messages
+    //       evicted implies closed and messages empty
+    
+    // Thread safety
+    //      Every field is guarded by this. Sending threads add(..) and then ask the session's engine to flush,
+    //      the engine's writer, the NIO loop or a task of the blocking engine's shared writer pool, drains
+    //      the queue whole and reports what it wrote, nobody ever waits on the queue
+    
+    /**
+     * Set the limits of every queue, before any client connects.
+     * @param bytes largest backlog, > 0
+     * @param stallMillis longest time a backlog may stay unwritten, > 0
+     */
+    static void limit(long bytes, long stallMillis) {
+        maxBytes = bytes;
+        maxStallNanos = stallMillis * 1_000_000;
+    }
+    
+    /**
+     * Queue a message.
+     * @param message bytes to write
+     * @return false if the queue is closed or the client went over a limit, see isEvicted(),
+     *         the message is then dropped
+     */
+    public synchronized boolean add(byte[] message) {
+        if (closed) return false;
+        long now = System.nanoTime();
+        if (backlog == 0) stalledSince = now;
+        backlog += message.length;
+        if (backlog > maxBytes || now - stalledSince > maxStallNanos) {
+            evict();
+            return false;
+        }
+        messages.add(message);
+        METRICS.queued(backlog);
+        return true;
+    }
+    
+    /**
+     * Evict the client if its backlog stayed unwritten for longer than the time limit.
+     * @param now System.nanoTime()
+     * @return true if evicted now, its connection is to be closed without writing more
+     */
+    public synchronized boolean evictIfStalled(long now) {
+        if (evicted || backlog == 0 || now - stalledSince <= maxStallNanos) return false;
+        evict();
+        return true;
+    }
+    
+    /** @return true if nothing is left to write or the client was evicted, so it cannot stall anymore **/
+    public synchronized boolean isSettled() {
+        return backlog == 0 || evicted;
+    }
+    
+    private void evict() {
+        closed = true;
+        evicted = true;
+        messages.clear();
+        METRICS.evicted();
+    }
+    
+    /** @return every queued message, oldest first, possibly none **/
+    public synchronized List<byte[]> drain() {
+        List<byte[]> drained = new ArrayList<>(messages);
+        messages.clear();
+        if (!drained.isEmpty()) METRICS.coalesced(drained.size());
+        return drained;
+    }
+    
+    /** The engine wrote bytes taken from this queue **/
+    public synchronized void written(long bytes) {
+        if (bytes == 0) return;
+        backlog -= bytes;
+        stalledSince = System.nanoTime();
+    }
+    
+    /** @return true if the client went over a limit, its connection is to be closed without writing more **/
+    public synchronized boolean isEvicted() {
+        return evicted;
+    }
+    
+    /** @return true if no message is queued **/
+    public synchronized boolean isEmpty() {
+        return messages.isEmpty();
+    }
+    
+    /** Add nothing more, what is queued is still drained **/
+    public synchronized void close() {
+        closed = true;
+    }
+    
+}
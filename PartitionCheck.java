@@ -0,0 +1,187 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Check of a partitioned board against the same board in one piece: two BoardPartitions side by side and
+ * their PartitionGateway run in this process on localhost, and every move played through the gateway is
+ * played on Board.chunked(..) with the same seed too, whose looks the gateway's must equal.
+ * Checks a dig whose flood fill crosses the edge between the partitions, and a boom dug on the edge
+ * followed by a look at the counts it lowered on the other side.
+ * 
+ * <br> Usage: java PartitionCheck [--seed SEED]
+ * <br> The exit status is 1 if a check failed.
+ */
+public class PartitionCheck {
+    
+    /** Rows and cols of the board, split in a left and a right partition **/
+    private static final int ROWS = 40;
+    private static final int COLS = 40;
+    /** First col of the right partition **/
+    private static final int EDGE = COLS / 2;
+    /** Seeds tried for a board with both a flood crossing the edge and a boom on it **/
+    private static final int MAX_SEEDS = 1000;
+    
+    private final long seed;
+    private final PartitionGateway gateway;
+    private final PartitionGateway.Client client = new PartitionGateway.Client();
+    private final Board whole;
+    private int failures = 0;
+    
+    /**
+     * Start the partitions of the board of seed, and their gateway.
+     * @param seed of the board
+     * @throws IOException if a partition can not listen on localhost
+     */
+    private PartitionCheck(long seed) throws IOException {
+        this.seed = seed;
+        ServerSocket left = new ServerSocket(0), right = new ServerSocket(0);
+        PartitionLayout layout = new PartitionLayout(ROWS, COLS, 1, 2,
+                "localhost:" + left.getLocalPort() + ",localhost:" + right.getLocalPort());
+        serve(new BoardPartition(layout, 0, seed, 0), left);
+        serve(new BoardPartition(layout, 1, seed, 0), right);
+        gateway = new PartitionGateway(layout, true);
+        whole = Board.chunked(ROWS, COLS, seed, 0);
+    }
+    
+    private static void serve(BoardPartition partition, ServerSocket listener) {
+        Thread thread = new Thread(() -> {
+            try {
+                partition.serve(listener);
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /** Play a move through the gateway and on the whole board, then check the whole board looks the same **/
+    private void play(String move, int x, int y) throws IOException {
+        gateway.handleRequest(client, move + " " + x + " " + y);
+        if (move.equals("dig")) whole.digAndReveal(x, y);
+        else whole.flag(x, y);
+        check(move + " " + x + " " + y, gateway.handleRequest(client, "look"), whole.lookBoard());
+    }
+    
+    private void check(String what, String actual, String expected) {
+        if (actual.equals(expected)) return;
+        failures++;
+        System.out.println("seed " + seed + ", " + what + ": expected\n" + expected + "but the gateway showed\n" + actual);
+    }
+    
+    /** Dig a square of the left partition whose flood fill reveals squares of the right one **/
+    private void floodAcrossEdge() throws IOException {
+        int[] square = find(whole, seed, true);
+        play("dig", square[0], square[1]);
+        System.out.println("flood from " + square[0] + "," + square[1] + " across the edge checked");
+    }
+    
+    /**
+     * Dig a boom on the left side of the edge, then the squares next to it on the right side,
+     * and look at the right partition, whose counts next to the boom went down.
+     */
+    private void boomOnEdge() throws IOException {
+        int[] square = find(whole, seed, false);
+        int x = square[0], y = square[1];
+        play("dig", x, y);
+        for (int row = Math.max(y - 1, 0); row <= Math.min(y + 1, ROWS - 1); row++) {
+            if ( ! hasBoom(whole, EDGE, row)) play("dig", EDGE, row);
+        }
+        String request = "look " + EDGE + " " + Math.max(y - 2, 0) + " " + (COLS - EDGE) + " 5";
+        check(request, gateway.handleRequest(client, request), whole.lookViewport(EDGE, Math.max(y - 2, 0), COLS - EDGE, 5));
+        System.out.println("boom at " + x + "," + y + " on the edge checked");
+    }
+    
+    /**
+     * Find a square of the board of seed that is still as on a fresh copy of it.
+     * @param played the board of seed, as played so far
+     * @param seed of the board
+     * @param flood true for a safe square left of the edge whose dig reveals squares right of it,
+     *              false for a boom in the last col left of the edge with a safe square next to it on the right
+     * @return its col and row, null if there is none
+     */
+    private static int[] find(Board played, long seed, boolean flood) {
+        for (int y = 0; y < ROWS; y++) {
+            for (int x = flood ? 0 : EDGE - 1; x < EDGE; x++) {
+                Board fresh = Board.chunked(ROWS, COLS, seed, 0);
+                if ( ! played.lookViewport(x, y, 1, 1).equals(fresh.lookViewport(x, y, 1, 1))) continue;
+                if (flood && ! hasBoom(fresh, x, y) && fresh.digAndReveal(x, y) > 0
+                        && ! fresh.lookViewport(EDGE, 0, 1, ROWS).equals(Board.chunked(ROWS, COLS, seed, 0).lookViewport(EDGE, 0, 1, ROWS))) {
+                    return new int[] {x, y};
+                }
+                if ( ! flood && hasBoom(fresh, x, y) && ! hasBoom(fresh, EDGE, y)) return new int[] {x, y};
+            }
+        }
+        return null;
+    }
+    
+    /** @return true if the square at x col y row of board holds a boom **/
+    private static boolean hasBoom(Board board, int x, int y) {
+        return board.exclusive(() -> (board.cellAt(y, x) & Board.BOOM) != 0);
+    }
+    
+    /** @return true if the board of seed has a flood across the edge and a boom on it to check **/
+    private static boolean suits(long seed) {
+        Board board = Board.chunked(ROWS, COLS, seed, 0);
+        return find(board, seed, true) != null && find(board, seed, false) != null;
+    }
+    
+    /** Say bye to a gateway serving on localhost, which must reply TERM and hang up **/
+    private void bye() throws IOException {
+        ServerSocket listener = new ServerSocket(0);
+        Thread thread = new Thread(() -> {
+            try {
+                gateway.serve(listener);
+            } catch (IOException ioe) {
+                // closed
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        try (Socket socket = new Socket("localhost", listener.getLocalPort())) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = socket.getOutputStream();
+            in.readLine();
+            out.write(("bye" + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            check("bye", in.readLine() + " then " + in.readLine(), "TERM then null");
+        }
+        listener.close();
+        System.out.println("bye checked");
+    }
+    
+    /**
+     * Run the checks, see the usage above.
+     * @param args arguments as described
+     * @throws IOException if the partitions can not be started
+     */
+    public static void main(String[] args) throws IOException {
+        long seed = 0;
+        if (args.length == 2 && args[0].equals("--seed")) {
+            seed = Long.parseLong(args[1]);
+        } else if (args.length != 0) {
+            System.err.println("usage: PartitionCheck [--seed SEED]");
+            System.exit(2);
+        }
+        long first = seed;
+        while ( ! suits(seed)) {
+            if (++seed - first >= MAX_SEEDS) throw new IllegalStateException("no board to check from seed " + first);
+        }
+        PartitionCheck check = new PartitionCheck(seed);
+        check.floodAcrossEdge();
+        check.boomOnEdge();
+        check.bye();
+        System.out.println(check.failures == 0 ? "partitions agree with the whole board" : check.failures + " checks failed");
+        System.exit(check.failures == 0 ? 0 : 1);
+    }
+    
+}
@@ -0,0 +1,115 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Requests to the partitions of a PartitionLayout, in the partition protocol of BoardPartition,
+ * over pools of connections: a request takes an idle connection to its partition, or opens one,
+ * and gives it back once replied. So concurrent requests never wait for each other's replies,
+ * and a partition waiting for a neighbour to continue its flood fill never blocks the neighbour
+ * continuing the fill back into it.
+ */
+public class PartitionClient {
+    
+    /** Layout of the partitions **/
+    private final PartitionLayout layout;
+    /** Idle connections to each partition **/
+    private final List<ConcurrentLinkedQueue<Connection>> idle = new ArrayList<>();
+    
+    // Abstraction function:
+    //      Represent a client of every partition of layout, with idle.get(k) the connections to partition k
+    //      not used by a request
+    
+    // Rep invariant:
+    //       idle.size() == layout.size()
+    
+    // Rep exposure
+    //      All fields are private and final
+    
+    // Thread safety
+    //      A connection is used by one request at a time, the one that polled it from its idle queue
+    
+    /**
+     * Make a client of the partitions of layout, connecting on demand.
+     * @param layout of the partitions
+     */
+    public PartitionClient(PartitionLayout layout) {
+        this.layout = layout;
+        for (int k = 0; k < layout.size(); k++) {
+            idle.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+    
+    /**
+     * Send a request to a partition and wait for its reply.
+     * @param partition index of the partition in the layout
+     * @param request line of the partition protocol, without line separator
+     * @return the reply line
+     * @throws IOException if the partition can not be reached, closed the connection or replied an error
+     */
+    public String call(int partition, String request) throws IOException {
+        Connection connection = idle.get(partition).poll();
+        if (connection == null) connection = new Connection(partition);
+        String reply;
+        try {
+            reply = connection.call(request);
+        } catch (IOException ioe) {
+            connection.close();
+            throw ioe;
+        }
+        idle.get(partition).add(connection);
+        if (reply.startsWith(BoardPartition.ERROR)) throw new IOException(reply.substring(BoardPartition.ERROR.length()));
+        return reply;
+    }
+    
+    /** Close the idle connections **/
+    public void close() {
+        for (ConcurrentLinkedQueue<Connection> connections : idle) {
+            for (Connection connection = connections.poll(); connection != null; connection = connections.poll()) {
+                connection.close();
+            }
+        }
+    }
+    
+    /** A connection to one partition **/
+    private final class Connection {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final OutputStream out;
+        
+        Connection(int partition) throws IOException {
+            socket = new Socket();
+            socket.connect(layout.address(partition));
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = socket.getOutputStream();
+        }
+        
+        String call(String request) throws IOException {
+            out.write((request + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String reply = in.readLine();
+            if (reply == null) throw new IOException("partition closed the connection");
+            return reply;
+        }
+        
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                // already broken
+            }
+        }
+    }
+    
+}
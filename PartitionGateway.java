@@ -0,0 +1,332 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gateway of a board split over BoardPartition processes: clients connect to it and play in the
+ * protocol of MinesweeperServer, it sends each dig, flag and deflag to the partition owning the square,
+ * and assembles looks from the parts of the board each partition shows, asked in parallel.
+ * Only look, dig, flag, deflag, bind, unbind, help, hello and bye are available; there is one game,
+ * the whole partitioned board, and the text protocol only.
+ * 
+ * <br> Usage: java PartitionGateway --size SIZE_X,SIZE_Y --grid ROWS,COLS --partitions HOST:PORT,...
+ *                                  [--port PORT] [--debug]
+ * <br> --size, --grid and --partitions are those the partitions were started with, see BoardPartition.
+ * <br> PORT is the port clients connect to, 4444 by default. --debug keeps clients connected after a BOOM,
+ *      as for MinesweeperServer.
+ */
+public class PartitionGateway {
+    
+    /** Default port **/
+    private static final int DEFAULT_PORT = 4444;
+    private static final String TERMINATED_SIGNAL = "TERM";
+    private static final String DUG_BOOM_MESSAGE = "BOOM!";
+    
+    /** Layout of the partitions **/
+    private final PartitionLayout layout;
+    /** Requests to the partitions **/
+    private final PartitionClient partitions;
+    /** Asks the partitions for their part of a look in parallel **/
+    private final ExecutorService looks = Executors.newCachedThreadPool();
+    /** True if clients are not disconnected after a BOOM **/
+    private final boolean debug;
+    /** Number of connected clients **/
+    private final AtomicInteger players = new AtomicInteger();
+    
+    // Abstraction function:
+    //      Represent the gateway of the board split over the partitions of layout
+    
+    // Rep invariant:
+    //       players >= 0
+    
+    // Rep exposure
+    //      All fields are private and final
+    
+    // Thread safety
+    //      Each client is served by its own thread, with its own Client state,
+    //      partitions and looks are thread safe, players is atomic
+    
+    /**
+     * Make a gateway to the partitions of layout.
+     * @param layout of the partitions
+     * @param debug true if clients are not disconnected after a BOOM
+     */
+    public PartitionGateway(PartitionLayout layout, boolean debug) {
+        this.layout = layout;
+        this.partitions = new PartitionClient(layout);
+        this.debug = debug;
+    }
+    
+    /**
+     * Serve clients on listener, a thread per client. Never returns unless listener breaks.
+     * @param listener bound server socket
+     * @throws IOException if listener is broken
+     */
+    public void serve(ServerSocket listener) throws IOException {
+        while (true) {
+            Socket socket = listener.accept();
+            socket.setTcpNoDelay(true);
+            new Thread(() -> handleConnection(socket)).start();
+        }
+    }
+    
+    /** Play a client's commands until it disconnects, is told BOOM or says bye **/
+    private void handleConnection(Socket socket) {
+        players.incrementAndGet();
+        try (Socket connection = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = connection.getOutputStream();
+            Client client = new Client();
+            send(out, hello());
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                String output;
+                try {
+                    output = handleRequest(client, line);
+                } catch (IOException ioe) {
+                    output = "Board unavailable: " + ioe.getMessage();
+                }
+                send(out, output);
+                if (client.done) break;
+            }
+        } catch (IOException ioe) {
+            // the client went away
+        } finally {
+            players.decrementAndGet();
+        }
+    }
+    
+    private static void send(OutputStream out, String message) throws IOException {
+        out.write((message + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+    
+    /**
+     * Handle a client's line.
+     * @param client state of the client
+     * @param input line from the client
+     * @return message to client
+     * @throws IOException if a partition fails
+     */
+    String handleRequest(Client client, String input) throws IOException {
+        Command command = client.command;
+        if ( ! command.parse(input)) return "Invalid input, please try again";
+        int x = command.argc() >= 2 ? command.arg(0) : 0, y = command.argc() >= 2 ? command.arg(1) : 0;
+        switch (command.op()) {
+        case LOOK:
+            if (command.argc() == 0) return look();
+            if (command.arg(2) <= 0 || command.arg(3) <= 0 || (long) command.arg(2) * command.arg(3) > Board.MAX_LOOK_CELLS) {
+                return "Viewport size must be positive and at most " + Board.MAX_LOOK_CELLS + " squares";
+            }
+            client.viewX = x;
+            client.viewY = y;
+            client.viewWidth = command.arg(2);
+            client.viewHeight = command.arg(3);
+            return lookViewport(x, y, client.viewWidth, client.viewHeight);
+        case HELP:
+            return "Type \"look\" to look the game board, \"look x y w h\" to look w columns by h rows from x y\n"
+                    + "Type \"dig x y\" to dig a square\n"
+                    + "Type \"flag x y\" to flag a square\n"
+                    + "Type \"deflag x y\" to deflag a square\n"
+                    + "Type \"bind\" to be replied the last part looked at after each move, \"unbind\" for the whole board\n"
+                    + "Type \"bye\" to end this game";
+        case BYE:
+            client.done = true;
+            return TERMINATED_SIGNAL;
+        case HELLO:
+            if (command.argc() == 1 && command.arg(0) != 0) return "Only the text protocol is available on a partitioned board";
+            return hello();
+        case BIND:
+            if (client.viewWidth == 0) return "No part looked at yet, type \"look x y w h\" first";
+            client.viewBound = true;
+            return "bound to " + client.viewWidth + " columns by " + client.viewHeight + " rows from "
+                    + client.viewX + " " + client.viewY;
+        case UNBIND:
+            client.viewBound = false;
+            return "unbound";
+        case DIG:
+            if (inBound(x, y) && Long.parseLong(partitions.call(layout.owner(y, x), "dig " + x + " " + y)) < 0) {
+                client.done = ! debug;
+                return DUG_BOOM_MESSAGE;
+            }
+            return view(client);
+        case FLAG:
+        case DEFLAG:
+            if (inBound(x, y)) partitions.call(layout.owner(y, x), command.op().keyword + " " + x + " " + y);
+            return view(client);
+        default:
+            return "Not available on a partitioned board";
+        }
+    }
+    
+    /** @return true if x col y row is a square of the board **/
+    private boolean inBound(int x, int y) {
+        return x >= 0 && y >= 0 && x < layout.getColNum() && y < layout.getRowNum();
+    }
+    
+    /** Board shown after a move: the bound viewport of the client, else the whole board **/
+    private String view(Client client) throws IOException {
+        if ( ! client.viewBound) return look();
+        return lookViewport(client.viewX, client.viewY, client.viewWidth, client.viewHeight);
+    }
+    
+    /** The whole board, in the format of Board.lookBoard() **/
+    private String look() throws IOException {
+        if ((long) layout.getRowNum() * layout.getColNum() > Board.MAX_LOOK_CELLS) return Board.TOO_LARGE_TO_LOOK;
+        return lookViewport(0, 0, layout.getColNum(), layout.getRowNum());
+    }
+    
+    /**
+     * Part of the board, in the format of Board.lookViewport(..), from the parts of the partitions it covers.
+     * @param x the num of the first col shown
+     * @param y the num of the first row shown
+     * @param w number of cols shown, clipped to the board
+     * @param h number of rows shown, clipped to the board
+     * @return the part of the board
+     * @throws IOException if a partition fails
+     */
+    private String lookViewport(int x, int y, int w, int h) throws IOException {
+        int fromCol = Math.max(x, 0), toCol = (int) Math.min((long) x + Math.max(w, 0), layout.getColNum());
+        int fromRow = Math.max(y, 0), toRow = (int) Math.min((long) y + Math.max(h, 0), layout.getRowNum());
+        StringBuilder s = new StringBuilder(3 * Math.max(toCol - fromCol, 0) + 4);
+        s.append("   ");
+        for (int k = fromCol; k < toCol; k++) {
+            Board.appendPadded(s, k);
+        }
+        s.append('\n');
+        if (fromRow >= toRow || fromCol >= toCol) return s.toString();
+        char[][] squares = new char[toRow - fromRow][toCol - fromCol];
+        List<CompletableFuture<Void>> parts = new ArrayList<>();
+        for (int k = 0; k < layout.size(); k++) {
+            int partFromCol = Math.max(fromCol, layout.firstCol(k)), partToCol = Math.min(toCol, layout.endCol(k));
+            int partFromRow = Math.max(fromRow, layout.firstRow(k)), partToRow = Math.min(toRow, layout.endRow(k));
+            if (partFromCol >= partToCol || partFromRow >= partToRow) continue;
+            int partition = k;
+            String request = "look " + partFromCol + " " + partFromRow + " " + (partToCol - partFromCol) + " " + (partToRow - partFromRow);
+            parts.add(CompletableFuture.runAsync(() -> {
+                String part;
+                try {
+                    part = partitions.call(partition, request);
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+                int row = partFromRow - fromRow, at = 0;
+                for (int i = 0; i < part.length(); i++) {
+                    char square = part.charAt(i);
+                    if (square == BoardPartition.ROW_SEPARATOR) {
+                        row++;
+                        at = 0;
+                    } else {
+                        squares[row][partFromCol - fromCol + at++] = square;
+                    }
+                }
+            }, looks));
+        }
+        try {
+            CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException ce) {
+            if (ce.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException) ce.getCause()).getCause();
+            throw ce;
+        }
+        for (int i = fromRow; i < toRow; i++) {
+            Board.appendPadded(s, i).append(' ');
+            for (char square : squares[i - fromRow]) {
+                if (square == '0') s.append("   ");
+                else s.append(' ').append(square).append(' ');
+            }
+            s.append('\n');
+        }
+        return s.toString();
+    }
+    
+    /** Return the hello message of the board */
+    private String hello() {
+        return "Welcome to Minesweeper. Players : " + players.get() + " including you. Board: "
+                + layout.getColNum() + " columns by " + layout.getRowNum() + " rows. Type 'help' for help.";
+    }
+    
+    /** State of one client **/
+    static final class Client {
+        /** Reused to decode each line **/
+        final Command command = new Command();
+        /** Part of the board of the last "look x y w h", viewWidth == 0 if none **/
+        int viewX, viewY, viewWidth, viewHeight;
+        /** True if move replies show the viewport instead of the whole board **/
+        boolean viewBound;
+        /** True once the client is to be disconnected after its reply **/
+        boolean done;
+    }
+    
+    /**
+     * Start a gateway, see the usage above.
+     * @param args arguments as described
+     */
+    public static void main(String[] args) {
+        int sizeX = -1, sizeY = -1, gridRows = -1, gridCols = -1, port = DEFAULT_PORT;
+        boolean debug = false;
+        String partitions = null;
+        Queue<String> arguments = new LinkedList<>(Arrays.asList(args));
+        PartitionLayout layout;
+        try {
+            while ( ! arguments.isEmpty()) {
+                String flag = arguments.remove();
+                try {
+                    if (flag.equals("--size")) {
+                        String[] sizes = arguments.remove().split(",");
+                        sizeX = Integer.parseInt(sizes[0]);
+                        sizeY = Integer.parseInt(sizes[1]);
+                    } else if (flag.equals("--grid")) {
+                        String[] grid = arguments.remove().split(",");
+                        gridRows = Integer.parseInt(grid[0]);
+                        gridCols = Integer.parseInt(grid[1]);
+                    } else if (flag.equals("--partitions")) {
+                        partitions = arguments.remove();
+                    } else if (flag.equals("--port")) {
+                        port = Integer.parseInt(arguments.remove());
+                    } else if (flag.equals("--debug")) {
+                        debug = true;
+                    } else {
+                        throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
+                    }
+                } catch (NoSuchElementException | ArrayIndexOutOfBoundsException e) {
+                    throw new IllegalArgumentException("missing argument for " + flag);
+                } catch (NumberFormatException nfe) {
+                    throw new IllegalArgumentException("unable to parse number for " + flag);
+                }
+            }
+            if (partitions == null) throw new IllegalArgumentException("--partitions is required");
+            layout = new PartitionLayout(sizeX, sizeY, gridRows, gridCols, partitions);
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.err.println("usage: PartitionGateway --size SIZE_X,SIZE_Y --grid ROWS,COLS --partitions HOST:PORT,..."
+                    + " [--port PORT] [--debug]");
+            return;
+        }
+        
+        try (ServerSocket listener = new ServerSocket(port)) {
+            new PartitionGateway(layout, debug).serve(listener);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+    
+}
@@ -0,0 +1,134 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.net.InetSocketAddress;
+
+/**
+ * How a partitioned board is split between partition processes, see BoardPartition:
+ * the n*m board is cut into a grid of rowBands by colBands rectangles of about equal size,
+ * partition k owns band k / colBands of rows and band k % colBands of cols, and listens on address k.
+ * Every partition and the gateway are given the same layout.
+ */
+public class PartitionLayout {
+    
+    /** Number of rows and cols of the whole board **/
+    private final int n;
+    private final int m;
+    /** Number of bands of rows and of cols **/
+    private final int rowBands;
+    private final int colBands;
+    /** Address of each partition, in row major order of the grid **/
+    private final InetSocketAddress[] addresses;
+    
+    // Abstraction function:
+    //      Represent the split of a n*m board into rowBands*colBands partitions, band b of rows
+    //      being rows bandStart(b, rowBands, n)..bandStart(b + 1, rowBands, n)-1 and the same for cols,
+    //      partition k reachable at addresses[k]
+    
+    // Rep invariant:
+    //       0 < rowBands <= n, 0 < colBands <= m, addresses.length == rowBands * colBands
+    
+    // Rep exposure
+    //      All fields are private and final, addresses is never returned
+    
+    /**
+     * Make a layout.
+     * @param n number of rows of the board, > 0
+     * @param m number of cols of the board, > 0
+     * @param rowBands number of bands of rows, in 1..n
+     * @param colBands number of bands of cols, in 1..m
+     * @param addresses comma separated HOST:PORT of each partition, row major
+     * @throws IllegalArgumentException if the grid does not fit the board or there is not one address per partition
+     */
+    public PartitionLayout(int n, int m, int rowBands, int colBands, String addresses) {
+        if (n <= 0 || m <= 0) throw new IllegalArgumentException("unsupported board size " + n + "," + m);
+        if (rowBands <= 0 || rowBands > n || colBands <= 0 || colBands > m)
+            throw new IllegalArgumentException("grid " + rowBands + "," + colBands + " does not fit the board");
+        String[] split = addresses.split(",");
+        if (split.length != rowBands * colBands)
+            throw new IllegalArgumentException(split.length + " partition addresses for a grid of "
+                    + rowBands * colBands + " partitions");
+        this.n = n;
+        this.m = m;
+        this.rowBands = rowBands;
+        this.colBands = colBands;
+        this.addresses = new InetSocketAddress[split.length];
+        for (int k = 0; k < split.length; k++) {
+            int colon = split[k].lastIndexOf(':');
+            if (colon < 0) throw new IllegalArgumentException("partition address must be HOST:PORT: \"" + split[k] + "\"");
+            this.addresses[k] = new InetSocketAddress(split[k].substring(0, colon),
+                    Integer.parseInt(split[k].substring(colon + 1)));
+        }
+    }
+    
+    public int getRowNum() {
+        return n;
+    }
+    
+    public int getColNum() {
+        return m;
+    }
+    
+    /** @return number of partitions **/
+    public int size() {
+        return addresses.length;
+    }
+    
+    /** @return address of partition k **/
+    public InetSocketAddress address(int k) {
+        return addresses[k];
+    }
+    
+    /**
+     * @param row of a square of the board
+     * @param col of a square of the board
+     * @return the partition owning the square
+     */
+    public int owner(int row, int col) {
+        return rowBand(row) * colBands + colBand(col);
+    }
+    
+    /** First row of partition k **/
+    public int firstRow(int k) {
+        return bandStart(k / colBands, rowBands, n);
+    }
+    
+    /** Row after the last row of partition k **/
+    public int endRow(int k) {
+        return bandStart(k / colBands + 1, rowBands, n);
+    }
+    
+    /** First col of partition k **/
+    public int firstCol(int k) {
+        return bandStart(k % colBands, colBands, m);
+    }
+    
+    /** Col after the last col of partition k **/
+    public int endCol(int k) {
+        return bandStart(k % colBands + 1, colBands, m);
+    }
+    
+    /** Band of rows of row, requires 0 <= row < n **/
+    private int rowBand(int row) {
+        return band(row, rowBands, n);
+    }
+    
+    /** Band of cols of col, requires 0 <= col < m **/
+    private int colBand(int col) {
+        return band(col, colBands, m);
+    }
+    
+    /** First of the size lines of band b out of bands **/
+    private static int bandStart(int b, int bands, int size) {
+        return (int) ((long) b * size / bands);
+    }
+    
+    /** Band of line out of bands splitting size lines, the inverse of bandStart **/
+    private static int band(int line, int bands, int size) {
+        int b = (int) ((long) line * bands / size);
+        // bandStart rounds down, so line is in band b or the one after
+        return bandStart(b + 1, bands, size) <= line ? b + 1 : b;
+    }
+    
+}
@@ -0,0 +1,63 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.io.File;
+
+/**
+ * Optional tuning settings of a MinesweeperServer, filled from the command line before the server starts.
+ * Every setting has a default that behaves like a plain server, so new ServerConfig() is always valid.
+ */
+public class ServerConfig {
+    
+    /** Rows per lock stripe of the board, 0 for a single lock over the whole board **/
+    int stripeRows = 0;
+    /** Name of the ConnectionEngine serving clients **/
+    String engine = ConnectionEngine.THREAD;
+    /** Number of executors games are spread over **/
+    int shards = Runtime.getRuntime().availableProcessors();
+    /** Threads of each shard executor, running moves of its games in parallel **/
+    int shardThreads = 4;
+    /** Time without players after which a game is evicted **/
+    int gameIdleSeconds = 600;
+    /** Largest board a client may create with the new command **/
+    int maxNewGameCells = 1_000_000;
+    /** Generate the random starting board lazily in chunks **/
+    boolean chunked = false;
+    /** Seed of the random starting board, null for a different board every run **/
+    Long seed = null;
+    /** Directory the snapshot command writes to, null if snapshots are disabled **/
+    File snapshotDir = null;
+    /** Directory of the move journal of the default game, null if it is not journaled **/
+    File journalDir = null;
+    /** Moves between two compactions of the journal into a snapshot **/
+    long journalCompactEvery = 1_000_000;
+    /** Most bytes queued for a client and not yet written before it is disconnected **/
+    long maxBacklogBytes = OutputQueue.DEFAULT_MAX_BYTES;
+    /** Longest time output queued for a client may go unwritten before it is disconnected **/
+    long maxStallMillis = OutputQueue.DEFAULT_MAX_STALL_MILLIS;
+    /** Most clients served at once, see AdmissionControl **/
+    int maxConnections = Integer.MAX_VALUE;
+    /** Most clients waiting for a place once maxConnections are served **/
+    int maxWaiting = 0;
+    /** Tokens per second of each client's requests, 0 if requests are not limited **/
+    double requestRate = 0;
+    /** Most tokens a client saves up, 0 for one second's worth **/
+    double requestBurst = 0;
+    
+    // Abstraction function: 
+    //      Represent the optional settings of one server run
+    
+    // Rep invariant:
+    //       stripeRows >= 0
+    //       engine is a name accepted by ConnectionEngine.forName
+    //       shards > 0, shardThreads > 0, gameIdleSeconds >= 0, maxNewGameCells > 0
+    //       snapshotDir is null or a directory
+    //       journalDir == null or ! chunked, journalCompactEvery > 0
+    //       maxBacklogBytes > 0, maxStallMillis > 0
+    //       maxConnections > 0, maxWaiting >= 0, requestRate >= 0, requestBurst >= 0
+    
+    // Rep exposure
+    //      Fields are package private, set only while parsing the command line
+    
+}
@@ -0,0 +1,309 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms of a running server: connected clients, requests and their latency by command,
+ * board lock waits and hold times, squares revealed per dig, response sizes, output queues, spectators,
+ * and admission: clients waiting for a place or turned away, requests delayed or refused for their rate.
+ * Recording is a few atomic increments, without allocation or locking, so it stays on in production.
+ * Read through the stats command or JMX, see ServerMetricsMXBean.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    
+    /** Kind of request of a batch of moves, after the Command.Op kinds **/
+    static final int BATCH = Command.Op.values().length;
+    /** Kind of request of a line that is not a command **/
+    static final int INVALID = BATCH + 1;
+    private static final int KINDS = INVALID + 1;
+    private static final String JMX_NAME = "minesweeper:type=ServerMetrics";
+    /** Metrics of this process, shared by every board and server in it, made once the kinds are known **/
+    static final ServerMetrics INSTANCE = new ServerMetrics();
+    
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLongArray requests = new AtomicLongArray(KINDS);
+    private final LatencyHistogram[] requestNanos = new LatencyHistogram[KINDS];
+    private final LatencyHistogram lockWaitNanos = new LatencyHistogram();
+    private final LatencyHistogram lockHoldNanos = new LatencyHistogram();
+    private final LatencyHistogram revealedCells = new LatencyHistogram();
+    private final LatencyHistogram responseSizes = new LatencyHistogram();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private final AtomicLong booms = new AtomicLong();
+    private final LatencyHistogram outputBacklog = new LatencyHistogram();
+    private final LatencyHistogram messagesPerWrite = new LatencyHistogram();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicInteger spectators = new AtomicInteger();
+    private final AtomicLong resyncs = new AtomicLong();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicLong throttledRequests = new AtomicLong();
+    private final AtomicLong refusedRequests = new AtomicLong();
+    
+    // Abstraction function: 
+    //      Represent what a server did since it started, requests of kind k (an Op ordinal, BATCH or INVALID)
+    //      counted in requests[k] with their handling times in requestNanos[k]
+    
+    // Rep invariant:
+    //       connections >= 0, spectators >= 0, waiting >= 0
+    
+    // Rep exposure
+    //      All fields are private and final, readers get copies or text
+    
+    // Thread safety
+    //      Every field is atomic or a thread safe histogram, a report may mix values a few updates apart
+    
+    private ServerMetrics() {
+        for (int k = 0; k < KINDS; k++) {
+            requestNanos[k] = new LatencyHistogram();
+        }
+    }
+    
+    /** Make the metrics readable over JMX, once per process **/
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(JMX_NAME));
+        } catch (InstanceAlreadyExistsException iaee) {
+            // another server of this process registered them
+        } catch (JMException jme) {
+            jme.printStackTrace();
+        }
+    }
+    
+    /** A client connected **/
+    void connected() {
+        connections.incrementAndGet();
+    }
+    
+    /** A client disconnected **/
+    void disconnected() {
+        connections.decrementAndGet();
+    }
+    
+    /**
+     * A request was handled.
+     * @param kind an Op ordinal, BATCH or INVALID
+     * @param nanos time taken to handle it
+     */
+    void requestHandled(int kind, long nanos) {
+        requests.incrementAndGet(kind);
+        requestNanos[kind].record(nanos);
+    }
+    
+    /** A response of bytes bytes was sent **/
+    void responded(int bytes) {
+        responseBytes.addAndGet(bytes);
+        responseSizes.record(bytes);
+    }
+    
+    /** A board lock acquisition waited nanos **/
+    void lockWaited(long nanos) {
+        lockWaitNanos.record(nanos);
+    }
+    
+    /** A move or look held board locks for nanos **/
+    void lockHeld(long nanos) {
+        lockHoldNanos.record(nanos);
+    }
+    
+    /**
+     * A dig dug something.
+     * @param revealed number of squares it revealed
+     * @param boom whether it dug a boom
+     */
+    void dug(int revealed, boolean boom) {
+        revealedCells.record(revealed);
+        if (boom) booms.incrementAndGet();
+    }
+    
+    /** Output was queued for a client, which now has backlog bytes not yet written **/
+    void queued(long backlog) {
+        outputBacklog.record(backlog);
+    }
+    
+    /** An engine took this many queued messages to write at once **/
+    void coalesced(int messages) {
+        messagesPerWrite.record(messages);
+    }
+    
+    /** A client too slow to read its output was disconnected **/
+    void evicted() {
+        evictions.incrementAndGet();
+    }
+    
+    /** Spectators started, if delta is 1, or stopped, if -1, spectating a game **/
+    void spectating(int delta) {
+        spectators.addAndGet(delta);
+    }
+    
+    /** A spectator fell behind the moves kept for it and was sent a new snapshot **/
+    void resynced() {
+        resyncs.incrementAndGet();
+    }
+    
+    /** Clients started, if delta is 1, or stopped, if -1, waiting for a place **/
+    void waiting(int delta) {
+        waiting.addAndGet(delta);
+    }
+    
+    /** A client was turned away, the server full and its line of waiting clients too **/
+    void rejected() {
+        rejectedConnections.incrementAndGet();
+    }
+    
+    /** A request was delayed until its client's rate allowed it **/
+    void throttled() {
+        throttledRequests.incrementAndGet();
+    }
+    
+    /** A request was refused, its client too far over its rate **/
+    void refused() {
+        refusedRequests.incrementAndGet();
+    }
+    
+    /** Name of a kind of request **/
+    private static String kindName(int kind) {
+        if (kind == BATCH) return "batch";
+        if (kind == INVALID) return "invalid";
+        return Command.Op.values()[kind].keyword;
+    }
+    
+    @Override
+    public int getConnections() {
+        return connections.get();
+    }
+    
+    @Override
+    public Map<String, Long> getRequests() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int k = 0; k < KINDS; k++) {
+            counts.put(kindName(k), requests.get(k));
+        }
+        return counts;
+    }
+    
+    @Override
+    public Map<String, Long> getRequestP99Micros() {
+        Map<String, Long> p99 = new LinkedHashMap<>();
+        for (int k = 0; k < KINDS; k++) {
+            p99.put(kindName(k), requestNanos[k].percentile(0.99) / 1000);
+        }
+        return p99;
+    }
+    
+    @Override
+    public long getContendedLocks() {
+        return lockWaitNanos.count();
+    }
+    
+    @Override
+    public long getLockWaitP99Micros() {
+        return lockWaitNanos.percentile(0.99) / 1000;
+    }
+    
+    @Override
+    public long getLockHoldP99Micros() {
+        return lockHoldNanos.percentile(0.99) / 1000;
+    }
+    
+    @Override
+    public double getCellsRevealedMean() {
+        return revealedCells.mean();
+    }
+    
+    @Override
+    public long getResponseBytes() {
+        return responseBytes.get();
+    }
+    
+    @Override
+    public long getBooms() {
+        return booms.get();
+    }
+    
+    @Override
+    public long getOutputBacklogP99Bytes() {
+        return outputBacklog.percentile(0.99);
+    }
+    
+    @Override
+    public double getMessagesPerWriteMean() {
+        return messagesPerWrite.mean();
+    }
+    
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+    
+    @Override
+    public int getSpectators() {
+        return spectators.get();
+    }
+    
+    @Override
+    public long getSpectatorResyncs() {
+        return resyncs.get();
+    }
+    
+    @Override
+    public int getWaitingConnections() {
+        return waiting.get();
+    }
+    
+    @Override
+    public long getRejectedConnections() {
+        return rejectedConnections.get();
+    }
+    
+    @Override
+    public long getThrottledRequests() {
+        return throttledRequests.get();
+    }
+    
+    @Override
+    public long getRefusedRequests() {
+        return refusedRequests.get();
+    }
+    
+    @Override
+    public String getReport() {
+        StringBuilder s = new StringBuilder();
+        s.append("connections ").append(connections.get()).append('\n');
+        s.append(String.format("%-10s %10s %10s %10s %10s %10s%n", "request", "count", "p50 us", "p99 us", "p999 us", "max us"));
+        for (int k = 0; k < KINDS; k++) {
+            long count = requests.get(k);
+            if (count == 0) continue;
+            appendMicros(s, kindName(k), count, requestNanos[k]);
+        }
+        appendMicros(s, "lock wait", lockWaitNanos.count(), lockWaitNanos);
+        appendMicros(s, "lock hold", lockHoldNanos.count(), lockHoldNanos);
+        s.append(String.format("revealed per dig: mean %.1f, p99 %d, max %d, booms %d%n",
+                revealedCells.mean(), revealedCells.percentile(0.99), revealedCells.max(), booms.get()));
+        s.append(String.format("response bytes: total %d, mean %.0f, p99 %d%n",
+                responseBytes.get(), responseSizes.mean(), responseSizes.percentile(0.99)));
+        s.append(String.format("output backlog bytes: p99 %d, max %d, messages per write %.2f, evicted %d",
+                outputBacklog.percentile(0.99), outputBacklog.max(), messagesPerWrite.mean(), evictions.get()));
+        s.append(String.format("%nspectators %d, resynced %d", spectators.get(), resyncs.get()));
+        s.append(String.format("%nadmission: waiting %d, rejected %d, requests throttled %d, refused %d",
+                waiting.get(), rejectedConnections.get(), throttledRequests.get(), refusedRequests.get()));
+        return s.toString();
+    }
+    
+    /** Append a line of a histogram of nanoseconds shown in microseconds **/
+    private static void appendMicros(StringBuilder s, String name, long count, LatencyHistogram nanos) {
+        s.append(String.format("%-10s %10d %10.1f %10.1f %10.1f %10.1f%n", name, count,
+                nanos.percentile(0.5) / 1e3, nanos.percentile(0.99) / 1e3, nanos.percentile(0.999) / 1e3, nanos.max() / 1e3));
+    }
+    
+}
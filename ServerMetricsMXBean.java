@@ -0,0 +1,70 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.util.Map;
+
+/**
+ * Management interface of ServerMetrics, registered as "minesweeper:type=ServerMetrics".
+ * Latencies are in microseconds.
+ */
+public interface ServerMetricsMXBean {
+    
+    /** Clients connected now **/
+    int getConnections();
+    
+    /** Requests handled so far, by command **/
+    Map<String, Long> getRequests();
+    
+    /** 99th percentile of the time to handle a request, by command **/
+    Map<String, Long> getRequestP99Micros();
+    
+    /** Board lock acquisitions that had to wait **/
+    long getContendedLocks();
+    
+    /** 99th percentile of the wait of a contended board lock acquisition **/
+    long getLockWaitP99Micros();
+    
+    /** 99th percentile of the time a move or look holds board locks **/
+    long getLockHoldP99Micros();
+    
+    /** Mean number of squares revealed by a dig that dug something **/
+    double getCellsRevealedMean();
+    
+    /** Bytes of all responses so far **/
+    long getResponseBytes();
+    
+    /** Booms dug so far **/
+    long getBooms();
+    
+    /** 99th percentile of the bytes queued for a client and not yet written, when output is queued **/
+    long getOutputBacklogP99Bytes();
+    
+    /** Mean number of messages written to a client at once **/
+    double getMessagesPerWriteMean();
+    
+    /** Clients disconnected for reading their output too slowly **/
+    long getEvictions();
+    
+    /** Clients spectating a game now **/
+    int getSpectators();
+    
+    /** Snapshots sent to spectators that fell behind the moves kept for them **/
+    long getSpectatorResyncs();
+    
+    /** Clients waiting for a place now **/
+    int getWaitingConnections();
+    
+    /** Clients turned away, the server and its line of waiting clients full **/
+    long getRejectedConnections();
+    
+    /** Requests delayed until their client's rate allowed them **/
+    long getThrottledRequests();
+    
+    /** Requests refused, their client too far over its rate **/
+    long getRefusedRequests();
+    
+    /** Everything above as the text of the stats command **/
+    String getReport();
+    
+}
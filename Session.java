@@ -0,0 +1,166 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client connection as seen by the game, whatever ConnectionEngine moves its bytes.
+ */
+public abstract class Session {
+    
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    /** Time between two checks of the backlogged sessions for output stalled too long **/
+    static final long SWEEP_MILLIS = 1000;
+    /** Thread checking the backlogged sessions of every engine **/
+    private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "output-sweep");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** Sessions sent output since they were last found settled, see OutputQueue.isSettled() **/
+    private static final Set<Session> BACKLOGGED = ConcurrentHashMap.newKeySet();
+    static {
+        SWEEPER.scheduleWithFixedDelay(Session::sweep, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    /** Reused to decode each line of this session **/
+    final Command command = new Command();
+    /** Game the client plays **/
+    volatile Game game;
+    /** Completed once every line received so far is handled **/
+    CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+    /** Part of the board of the last "look x y w h", viewWidth == 0 if none **/
+    int viewX, viewY, viewWidth, viewHeight;
+    /** True if move replies show the viewport instead of the whole board **/
+    boolean viewBound;
+    /** Board frame of the reply being made, sent after its text, null if none **/
+    byte[] frame;
+    /** Board of the last frame sent, see BoardFrames, null if none **/
+    Board frameBoard;
+    /** Board version and part of the board shown by the last frame **/
+    long frameVersion = -1;
+    int frameX, frameY, frameWidth, frameHeight;
+    /** True if the client spectates its game instead of playing it, see SpectatorFeed **/
+    boolean spectating;
+    /** True while the client holds a place of the server's AdmissionControl **/
+    boolean admitted;
+    /** Limits the client's requests, null if they are not limited **/
+    TokenBucket bucket;
+    /** Squares the request being handled looked at or revealed, the part of its cost that varies **/
+    long squares;
+    /** True if messages are sent as binary frames instead of lines **/
+    private boolean binary = false;
+    /** True while in BACKLOGGED **/
+    private boolean backlogged = false;
+    /** Output not yet written to the client **/
+    protected final OutputQueue output = new OutputQueue();
+    
+    // Abstraction function: 
+    //      Represent one connected client that can be sent lines of text
+    
+    // Thread safety
+    //      Implementations must allow close and abort from any thread, send queues output from any thread,
+    //      command, game, spectating, squares, the view and frame fields are only changed by the command being handled,
+    //      tail only by the engine thread, admitted is guarded by the AdmissionControl, bucket is set once
+    //      before the client's first command and thread safe, binary and backlogged are guarded by this, output is thread safe
+    
+    /**
+     * Send a message to the client, followed by a line separator, or as a TEXT frame in the binary protocol.
+     * Does nothing if the session is closed.
+     * @param message to send
+     */
+    public synchronized void send(String message) {
+        if (binary) {
+            queue(BoardFrames.text(message));
+        } else {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            byte[] line = new byte[bytes.length + LINE_SEPARATOR.length];
+            System.arraycopy(bytes, 0, line, 0, bytes.length);
+            System.arraycopy(LINE_SEPARATOR, 0, line, bytes.length, LINE_SEPARATOR.length);
+            queue(line);
+        }
+    }
+    
+    /**
+     * Send a board frame of the binary protocol, see BoardFrames. Does nothing if the session is closed.
+     * @param frame to send, requires isBinary()
+     */
+    public synchronized void send(byte[] frame) {
+        queue(frame);
+    }
+    
+    /** Queue output for the engine, evicting the client if it is too slow **/
+    private void queue(byte[] bytes) {
+        if (output.add(bytes)) {
+            flushSoon();
+            if ( ! backlogged) {
+                backlogged = true;
+                BACKLOGGED.add(this);
+            }
+        } else if (output.isEvicted()) abort();
+    }
+    
+    /**
+     * Evict the sessions whose output stayed unwritten too long, even if nothing more is sent to them,
+     * and forget the ones with nothing left to write.
+     */
+    private static void sweep() {
+        long now = System.nanoTime();
+        for (Session session : BACKLOGGED) {
+            if (session.output.evictIfStalled(now)) session.abort();
+            synchronized (session) {
+                if (session.output.isSettled()) {
+                    session.backlogged = false;
+                    BACKLOGGED.remove(session);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Send a last message in the current protocol, then switch protocol, with no other message in between.
+     * @param binary true for the binary protocol of BoardFrames, false for lines of text
+     * @param message to send
+     */
+    public synchronized void switchProtocol(boolean binary, String message) {
+        send(message);
+        this.binary = binary;
+    }
+    
+    /** @return true if the client uses the binary protocol **/
+    public synchronized boolean isBinary() {
+        return binary;
+    }
+    
+    /** @return true if every message sent so far was taken by the engine to be written **/
+    public boolean isFlushed() {
+        return output.isEmpty();
+    }
+    
+    /**
+     * Have the engine write the output soon, and all of it at once if it can.
+     * Called holding this session's lock only.
+     */
+    protected abstract void flushSoon();
+    
+    /** @return false once the connection is closed, by either side **/
+    public abstract boolean isOpen();
+    
+    /**
+     * Close the connection once the messages already sent are written.
+     */
+    public abstract void close();
+    
+    /**
+     * Close the connection now, dropping the messages not yet written.
+     */
+    public abstract void abort();
+    
+}
@@ -0,0 +1,258 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves of a board streamed to spectators, who never lock the board.
+ * Each dig, flag and deflag appends one record of the squares it changed to a ring of the last CAPACITY moves,
+ * numbered from 0 in the order they changed the board. Once per tick, each spectator is sent the moves
+ * after its own cursor, as one line per move:
+ * <pre>
+ *   MOVE ::= "move" SPACE N (SPACE X "," Y "," CELL)+
+ *   CELL ::= "-" | "F" | [0-8]
+ * </pre>
+ * where N is the number of the move, X the col and Y the row of a square it changed, CELL as in BoardWatch.
+ * A square changed several times by a move is listed each time, its last value is the one that stays.
+ * A spectator starts from a snapshot, the board as lookBoard shows it after the line
+ * "spectating game ID from move N", and then gets the moves from N on, some of which the snapshot may already show:
+ * a record gives the new value of its squares, so replaying it again changes nothing. A spectator may instead
+ * start from a move N it already knows the board before, and is then sent the line
+ * "spectating game ID replaying from move N" and the moves from N on, if they are still in the ring,
+ * else a snapshot. A spectator too far behind for the ring, because it reads its output slowly,
+ * is sent a new snapshot instead.
+ * 
+ * The moves' threads only add their squares to a buffer of their own, and append its record once per move under
+ * the writer lock, never contended unless moves of different stripes finish together: the ring has one writer
+ * at a time and any number of lock-free readers. Snapshots are the lock-free published snapshots of the board,
+ * so spectators need a board small enough to look at whole.
+ */
+public class SpectatorFeed implements BoardListener {
+    
+    /** Time between two sends to spectators **/
+    static final long TICK_MILLIS = 50;
+    /** Moves kept, as a power of two **/
+    static final int CAPACITY = 1 << 14;
+    /** Thread sending the moves of every feed **/
+    private static final ScheduledExecutorService TICKER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "spectator-feed");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ServerMetrics METRICS = ServerMetrics.INSTANCE;
+    /** Past this many entries the per thread move buffers are dropped after a move **/
+    private static final int MAX_KEPT_BUFFER = 1 << 16;
+    
+    /** Id of the game, for snapshots **/
+    private final int gameId;
+    /** The board spectated **/
+    private final Board board;
+    /** Scheduled ticks of this feed **/
+    private final ScheduledFuture<?> ticks;
+    /** Ring of the last CAPACITY moves, move v at index v % CAPACITY, as col, row, symbol triples **/
+    private final int[][] records = new int[CAPACITY][];
+    /** Number of moves appended, the ring's only written field readers wait for **/
+    private volatile long head = 0;
+    /** Guards appending to the ring **/
+    private final Object writer = new Object();
+    /** Squares changed so far by the move running on each thread **/
+    private final ThreadLocal<Record> pending = ThreadLocal.withInitial(Record::new);
+    /** Spectators, by session **/
+    private final ConcurrentMap<Session, Spectator> spectators = new ConcurrentHashMap<>();
+    
+    // Abstraction function:
+    //      Represent the moves 0..head-1 of board, the last CAPACITY of them kept, move v changed
+    //      the square at col records[v % CAPACITY][3k] row records[v % CAPACITY][3k + 1] to the
+    //      symbol records[v % CAPACITY][3k + 2], and the spectators of board with the moves each one was sent
+    
+    // Rep invariant:
+    //       head >= 0, records[v % CAPACITY] != null for every max(0, head - CAPACITY) <= v < head
+    //       every spectator's cursor <= head
+    
+    // Rep exposure
+    //      All fields are private, all final but head, records are never returned
+    
+    // Thread safety
+    //      records is written under writer, then published by the volatile write of head.
+    //      A reader reads head, then the records before it, then head again: if the ring wrapped past
+    //      the first record read meanwhile, what it read may be overwritten and it starts over from a snapshot.
+    //      The moves of the same rows append their records holding the rows' board locks, so in the order of the moves.
+    //      Spectators are only read and changed by the ticker thread once added.
+    
+    /**
+     * Make a SpectatorFeed recording the moves of board from now on, and start its ticks.
+     * @param gameId id of the game of board
+     * @param board to spectate, requires a board small enough to look at whole
+     */
+    public SpectatorFeed(int gameId, Board board) {
+        this.gameId = gameId;
+        this.board = board;
+        board.addListener(this);
+        ticks = TICKER.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Start sending moves to session.
+     * @param session of the spectator
+     * @param from number of the first move to replay, the session already showing the board before it,
+     *             or a negative number to start from a snapshot
+     */
+    public void spectate(Session session, long from) {
+        Spectator spectator = new Spectator(session, from < 0 ? -1 : from);
+        if (spectators.putIfAbsent(session, spectator) == null) METRICS.spectating(1);
+    }
+    
+    /** Stop sending moves to session **/
+    public void unspectate(Session session) {
+        if (spectators.remove(session) != null) METRICS.spectating(-1);
+    }
+    
+    /** @return true if anybody spectates **/
+    public boolean hasSpectators() {
+        return !spectators.isEmpty();
+    }
+    
+    /** @return number of spectators **/
+    public int getSpectatorCount() {
+        return spectators.size();
+    }
+    
+    /** Stop recording the moves of the board and sending them, for good **/
+    public void close() {
+        board.removeListener(this);
+        ticks.cancel(false);
+        for (Session session : spectators.keySet()) {
+            unspectate(session);
+        }
+    }
+    
+    @Override
+    public void cellChanged(int row, int col, int cell) {
+        pending.get().add(col, row, symbol(cell));
+    }
+    
+    @Override
+    public void moveDone() {
+        Record move = pending.get();
+        if (move.size == 0) return;
+        int[] record = move.take();
+        synchronized (writer) {
+            long next = head;
+            records[(int) (next & (CAPACITY - 1))] = record;
+            head = next + 1;
+        }
+    }
+    
+    /**
+     * Send every spectator the moves after its cursor, or a snapshot if it has none yet or fell behind the ring.
+     * Spectators at the same cursor share one encoding of the moves. A spectator whose output is not yet
+     * written is skipped, and catches up, or falls behind, at a later tick.
+     */
+    private void tick() {
+        if (spectators.isEmpty()) return;
+        long to = head;
+        Map<Long, String> encoded = new HashMap<>();
+        for (Spectator spectator : spectators.values()) {
+            long from = spectator.cursor;
+            if ((from == to && spectator.started) || !spectator.session.isFlushed()) continue;
+            String moves = from < 0 || from > to || to - from > CAPACITY ? null
+                    : from == to ? "" : encoded.computeIfAbsent(from, first -> encode(first, to));
+            if (moves == null) {
+                resync(spectator);
+                continue;
+            }
+            if (!spectator.started) {
+                moves = "spectating game " + gameId + " replaying from move " + from + (moves.isEmpty() ? "" : "\n" + moves);
+                spectator.started = true;
+            }
+            spectator.session.send(moves);
+            METRICS.responded(moves.length() + 1);
+            spectator.cursor = to;
+        }
+    }
+    
+    /**
+     * Lines of moves from..to-1, still in the ring when read.
+     * @return the lines, null if the ring wrapped past move from while reading them
+     */
+    private String encode(long from, long to) {
+        StringBuilder s = new StringBuilder();
+        for (long v = from; v < to; v++) {
+            int[] record = records[(int) (v & (CAPACITY - 1))];
+            if (v > from) s.append('\n');
+            s.append("move ").append(v);
+            for (int k = 0; k < record.length; k += 3) {
+                s.append(' ').append(record[k]).append(',').append(record[k + 1]).append(',').append((char) record[k + 2]);
+            }
+        }
+        return head - from > CAPACITY ? null : s.toString();
+    }
+    
+    /**
+     * Send a snapshot of the board, moves from the head of the ring then, and move the spectator's cursor there.
+     * Every move before that head published its rows before appending its record, so the snapshot shows it.
+     */
+    private void resync(Spectator spectator) {
+        long from = head;
+        String snapshot = board.lookBoard();
+        String message = "spectating game " + gameId + " from move " + from + "\n" + snapshot;
+        spectator.session.send(message);
+        METRICS.responded(message.length() + 1);
+        if (spectator.started) METRICS.resynced();
+        spectator.started = true;
+        spectator.cursor = from;
+    }
+    
+    /** Symbol of a packed cell in records **/
+    private static char symbol(int cell) {
+        switch (cell & Board.STATE_MASK) {
+        case Board.UNTOUCHED: return '-';
+        case Board.FLAGGED: return 'F';
+        default: return (char) ('0' + (cell & Board.COUNT_MASK));
+        }
+    }
+    
+    /** A spectator and the next move to send it, -1 until its first snapshot **/
+    private static final class Spectator {
+        final Session session;
+        long cursor;
+        /** True once sent its snapshot or the line starting its replay **/
+        boolean started;
+        
+        Spectator(Session session, long cursor) {
+            this.session = session;
+            this.cursor = cursor;
+        }
+    }
+    
+    /** Squares changed by the move running on a thread, as col, row, symbol triples. Reused across moves **/
+    private static final class Record {
+        int[] squares = new int[63];
+        int size;
+        
+        void add(int col, int row, int symbol) {
+            if (size + 3 > squares.length) squares = Arrays.copyOf(squares, 2 * squares.length);
+            squares[size++] = col;
+            squares[size++] = row;
+            squares[size++] = symbol;
+        }
+        
+        /** The squares of the move, in change order, and start the next move **/
+        int[] take() {
+            int[] record = Arrays.copyOf(squares, size);
+            if (squares.length > MAX_KEPT_BUFFER) squares = new int[63];
+            size = 0;
+            return record;
+        }
+    }
+    
+}
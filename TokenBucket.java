@@ -0,0 +1,67 @@
+/* Copyright (c) 2007-2017 MIT 6.005 course staff, all rights reserved.
+ * Redistribution of original or derived work requires permission of course staff.
+ */
+
+/**
+ * Rate limit of one client's requests: a bucket of tokens refilled at a steady rate up to its burst.
+ * A request may start once the bucket is not in debt, and is charged what it cost once done,
+ * since what a look or a dig costs is only known once it ran. So a costly request runs, then
+ * the client's next requests wait until the tokens it overspent are refilled.
+ */
+public class TokenBucket {
+    
+    /** Tokens refilled per nanosecond **/
+    private final double ratePerNano;
+    /** Most tokens the bucket holds **/
+    private final double burst;
+    /** Tokens in the bucket at time refilled, negative if in debt **/
+    private double tokens;
+    /** System.nanoTime() of the last refill **/
+    private long refilled;
+    
+    // Abstraction function:
+    //      Represent a bucket holding min(burst, tokens + (now - refilled) * ratePerNano) tokens now
+    
+    // Rep invariant:
+    //       ratePerNano > 0, burst > 0, tokens <= burst
+    
+    // Rep exposure
+    //      All fields are private
+    
+    // Thread safety
+    //      tokens and refilled are guarded by this
+    
+    /**
+     * Make a full bucket.
+     * @param rate tokens refilled per second, > 0
+     * @param burst most tokens held, > 0
+     */
+    public TokenBucket(double rate, double burst) {
+        this.ratePerNano = rate / 1e9;
+        this.burst = burst;
+        this.tokens = burst;
+        this.refilled = System.nanoTime();
+    }
+    
+    /** @return nanoseconds until the bucket is out of debt, 0 if a request may start now **/
+    public synchronized long delayNanos() {
+        refill();
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / ratePerNano);
+    }
+    
+    /**
+     * Charge a request done, putting the bucket in debt if it held fewer tokens.
+     * @param cost tokens the request cost, >= 0
+     */
+    public synchronized void take(double cost) {
+        refill();
+        tokens -= cost;
+    }
+    
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilled) * ratePerNano);
+        refilled = now;
+    }
+    
+}